@@ -0,0 +1,55 @@
+package benchmarks;
+
+import image.Image;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculating the brightness of every square of an image that was already resized, as every render after
+ * the first one of an image does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrightnessBenchmark {
+    @Param({"1024"})
+    public int width;
+
+    @Param({"768"})
+    public int height;
+
+    @Param({"64", "128", "256", "512"})
+    public int resolution;
+
+    private Image image;
+
+    @Setup
+    public void setUp() {
+        image = new Image(SyntheticImages.create(width, height));
+        image.resizeImage();
+        if (!image.isValidResolution(resolution)) {
+            throw new IllegalArgumentException("Resolution " + resolution + " does not fit the image");
+        }
+        image.divideIntoSquaresAndCalculationBrightness(resolution);
+    }
+
+    @Benchmark
+    public double[][] divideIntoSquaresAndCalculationBrightness() {
+        image.divideIntoSquaresAndCalculationBrightness(resolution);
+        return image.getBrightnessArray();
+    }
+}
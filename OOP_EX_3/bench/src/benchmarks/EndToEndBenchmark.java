@@ -0,0 +1,64 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_output.HtmlAsciiOutput;
+import image.Image;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole pipeline for one image, as the batch converter runs it: load the file, resize, calculate the
+ * brightness, match the characters and stream them to an HTML file. The matcher is built once, with all
+ * the printable ASCII characters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"1024"})
+    public int width;
+
+    @Param({"768"})
+    public int height;
+
+    @Param({"128", "512"})
+    public int resolution;
+
+    private String imageFile;
+    private HtmlAsciiOutput output;
+    private SubImgCharMatcher matcher;
+
+    @Setup
+    public void setUp() throws IOException {
+        imageFile = SyntheticImages.write(width, height, "png").getPath();
+        File htmlFile = File.createTempFile("end_to_end", ".html");
+        htmlFile.deleteOnExit();
+        output = new HtmlAsciiOutput(htmlFile.getPath(), "Courier New");
+        matcher = new SubImgCharMatcher(SyntheticImages.printableAscii());
+    }
+
+    @Benchmark
+    public Image convert() throws IOException {
+        Image image = new Image(imageFile);
+        image.resizeImage();
+        new AsciiArtAlgorithm(matcher, image, resolution).run(null, output);
+        return image;
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import image.Image;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Padding an image to power of two dimensions, alone and together with the summed-area table that the
+ * first division into squares builds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageBenchmark {
+    @Param({"1024"})
+    public int width;
+
+    @Param({"768"})
+    public int height;
+
+    private Image image;
+
+    @Setup
+    public void setUp() {
+        image = new Image(SyntheticImages.create(width, height));
+    }
+
+    @Benchmark
+    public Image resize() {
+        image.resizeImage();
+        return image;
+    }
+
+    @Benchmark
+    public double[][] resizeAndFirstDivision() {
+        image.resizeImage();
+        image.divideIntoSquaresAndCalculationBrightness(1);
+        return image.getBrightnessArray();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import image.Image;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding an image file and unpacking its pixels, for every common raster layout ImageIO produces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageLoadBenchmark {
+    @Param({"1024"})
+    public int width;
+
+    @Param({"768"})
+    public int height;
+
+    @Param({"png", "jpeg"})
+    public String format;
+
+    private String fileName;
+
+    @Setup
+    public void setUp() throws IOException {
+        fileName = SyntheticImages.write(width, height, format).getPath();
+    }
+
+    @Benchmark
+    public Image load() throws IOException {
+        return new Image(fileName);
+    }
+}
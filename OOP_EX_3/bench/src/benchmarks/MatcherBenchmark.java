@@ -0,0 +1,99 @@
+package benchmarks;
+
+import image_char_matching.CharConverter;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a SubImgCharMatcher, changing its charset, and matching brightness values and shapes with it.
+ * The glyphs are taken from the glyph cache, which is filled on the first construction, during the warmup.
+ * The shapes are the glyphs of random characters of the charset with some of their pixels flipped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBenchmark {
+    private static final int BRIGHTNESS_SAMPLES = 1024;
+    private static final char[] DIGITS = "0123456789".toCharArray();
+    private static final char TOGGLED_CHAR = '@';
+    private static final int FLIPPED_PIXELS = 32;
+
+    @Param({"digits", "ascii"})
+    public String charset;
+
+    private char[] chars;
+    private SubImgCharMatcher matcher;
+    private SubImgCharMatcher shapeMatcher;
+    private final double[] brightness = new double[BRIGHTNESS_SAMPLES];
+    private final long[][] shapes = new long[BRIGHTNESS_SAMPLES][];
+
+    @Setup
+    public void setUp() {
+        chars = charset.equals("digits") ? DIGITS : SyntheticImages.printableAscii();
+        matcher = new SubImgCharMatcher(chars);
+        matcher.removeChar(TOGGLED_CHAR);
+        Random random = new Random(BRIGHTNESS_SAMPLES);
+        for (int i = 0; i < BRIGHTNESS_SAMPLES; i++) {
+            brightness[i] = random.nextDouble();
+        }
+        shapeMatcher = new SubImgCharMatcher(chars);
+        shapeMatcher.setShapeMatching(true);
+        int maskSize = shapeMatcher.getShapeMaskSize();
+        for (int i = 0; i < BRIGHTNESS_SAMPLES; i++) {
+            shapes[i] = CharConverter.convertToPackedMask(chars[random.nextInt(chars.length)]).clone();
+            for (int j = 0; j < FLIPPED_PIXELS; j++) {
+                int bit = random.nextInt(maskSize * maskSize);
+                shapes[i][bit >>> 6] ^= 1L << bit;
+            }
+        }
+    }
+
+    @Benchmark
+    public SubImgCharMatcher construct() {
+        return new SubImgCharMatcher(chars);
+    }
+
+    /**
+     * Adds a character and removes it again, so the charset is the same after every invocation.
+     */
+    @Benchmark
+    public SubImgCharMatcher addAndRemoveChar() {
+        matcher.addChar(TOGGLED_CHAR);
+        matcher.removeChar(TOGGLED_CHAR);
+        return matcher;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BRIGHTNESS_SAMPLES)
+    public void getCharByImageBrightness(Blackhole blackhole) {
+        for (double value : brightness) {
+            blackhole.consume(matcher.getCharByImageBrightness(value));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BRIGHTNESS_SAMPLES)
+    public void getCharByShape(Blackhole blackhole) {
+        for (long[] shape : shapes) {
+            blackhole.consume(shapeMatcher.getCharByShape(shape));
+        }
+    }
+}
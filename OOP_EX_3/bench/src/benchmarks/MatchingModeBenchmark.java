@@ -0,0 +1,63 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import image.Image;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting an image that is already resized, matching either the brightness or the shape of its squares,
+ * with all the printable ASCII characters. The summed-area table is built during the setup, so only the
+ * division into squares and the matching are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingModeBenchmark {
+    @Param({"1024"})
+    public int width;
+
+    @Param({"768"})
+    public int height;
+
+    @Param({"128", "512"})
+    public int resolution;
+
+    @Param({"brightness", "shape"})
+    public String matching;
+
+    private Image image;
+    private SubImgCharMatcher matcher;
+
+    @Setup
+    public void setUp() {
+        image = new Image(SyntheticImages.create(width, height));
+        image.resizeImage();
+        if (!image.isValidResolution(resolution)) {
+            throw new IllegalArgumentException("Resolution " + resolution + " does not fit the image");
+        }
+        image.divideIntoSquaresAndCalculationBrightness(resolution);
+        matcher = new SubImgCharMatcher(SyntheticImages.printableAscii());
+        matcher.setShapeMatching(matching.equals("shape"));
+    }
+
+    @Benchmark
+    public char[][] convert() {
+        return new AsciiArtAlgorithm(matcher, image, resolution).run();
+    }
+}
@@ -0,0 +1,173 @@
+package benchmarks;
+
+import ascii_output.AsciiOutput;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the console and HTML outputs. The console output is written to a stream that discards it,
+ * so only the cost of the output itself is measured; the HTML output is written to a temporary file.
+ * The htmlBaseline benchmark writes the same page with the original HTML output, which escaped every cell
+ * into its own String and wrote it through a FileWriter, as the reference for the html benchmark.
+ * Besides frames per second, the secondary "bytes" result is the number of bytes written per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+    @Param({"128", "512", "1024"})
+    public int columns;
+
+    private char[][] chars;
+    private File htmlFile;
+    private AsciiOutput html;
+    private File baselineFile;
+    private AsciiOutput baseline;
+    private AsciiOutput console;
+    private PrintStream standardOut;
+    private CountingStream consoleBytes;
+
+    /**
+     * Counts the bytes written, per frame.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    /**
+     * Discards what is written to it, counting the bytes.
+     */
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * The HTML output as it was before it was buffered: a copy kept only to be measured against.
+     */
+    private static class BaselineHtmlOutput implements AsciiOutput {
+        private static final double BASE_LINE_SPACING = 0.8;
+        private static final double BASE_FONT_SIZE = 150.0;
+
+        private final String fontName;
+        private final String filename;
+
+        BaselineHtmlOutput(String filename, String fontName) {
+            this.fontName = fontName;
+            this.filename = filename;
+        }
+
+        @Override
+        public void out(char[][] chars) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+                writer.write(String.format(
+                        "<!DOCTYPE html>\n" +
+                        "<html>\n" +
+                        "<body style=\"" +
+                            "\tCOLOR:#000000;" +
+                            "\tTEXT-ALIGN:center;" +
+                            "\tFONT-SIZE:1px;\">\n" +
+                        "<p style=\"" +
+                            "\twhite-space:pre;" +
+                            "\tFONT-FAMILY:%s;" +
+                            "\tFONT-SIZE:%frem;" +
+                            "\tLETTER-SPACING:0.15em;" +
+                            "\tLINE-HEIGHT:%fem;\">\n",
+                        fontName, BASE_FONT_SIZE / chars[0].length, BASE_LINE_SPACING));
+                for (char[] row : chars) {
+                    for (char c : row) {
+                        String htmlRep;
+                        switch (c) {
+                            case '<': htmlRep = "&lt;"; break;
+                            case '>': htmlRep = "&gt;"; break;
+                            case '&': htmlRep = "&amp;"; break;
+                            default: htmlRep = String.valueOf(c);
+                        }
+                        writer.write(htmlRep);
+                    }
+                    writer.newLine();
+                }
+                writer.write(
+                        "</p>\n" +
+                        "</body>\n" +
+                        "</html>\n");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        chars = SyntheticImages.chars(columns, columns, SyntheticImages.printableAscii());
+        htmlFile = File.createTempFile("output", ".html");
+        htmlFile.deleteOnExit();
+        html = new HtmlAsciiOutput(htmlFile.getPath(), "Courier New");
+        baselineFile = File.createTempFile("baseline", ".html");
+        baselineFile.deleteOnExit();
+        baseline = new BaselineHtmlOutput(baselineFile.getPath(), "Courier New");
+        console = new ConsoleAsciiOutput();
+        standardOut = System.out;
+        consoleBytes = new CountingStream();
+        System.setOut(new PrintStream(consoleBytes));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(standardOut);
+    }
+
+    @Benchmark
+    public void html(Bytes bytes) {
+        html.out(chars);
+        bytes.bytes += htmlFile.length();
+    }
+
+    @Benchmark
+    public void htmlBaseline(Bytes bytes) {
+        baseline.out(chars);
+        bytes.bytes += baselineFile.length();
+    }
+
+    @Benchmark
+    public void console(Bytes bytes) {
+        long before = consoleBytes.count;
+        console.out(chars);
+        bytes.bytes += consoleBytes.count - before;
+    }
+}
@@ -0,0 +1,93 @@
+package benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the inputs of the benchmarks, so the results do not depend on asset files. The images are a
+ * diagonal gradient with a seeded noise on top, which gives every brightness level some squares and is the
+ * same on every run.
+ */
+final class SyntheticImages {
+    private static final long SEED = 42;
+    private static final int NOISE = 64;
+    private static final int CHANNEL_RANGE = 256 - NOISE;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Creates a synthetic image.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The image, of type TYPE_INT_RGB.
+     */
+    static BufferedImage create(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(SEED);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int level = (int) ((long) (x + y) * CHANNEL_RANGE / (width + height));
+                int red = level + random.nextInt(NOISE);
+                int green = level + random.nextInt(NOISE);
+                int blue = level + random.nextInt(NOISE);
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Writes a synthetic image to a temporary file, deleted when the JVM exits.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param format The ImageIO format name, such as "png" or "jpeg".
+     * @return The file.
+     * @throws IOException If the file cannot be written.
+     */
+    static File write(int width, int height, String format) throws IOException {
+        File file = File.createTempFile("synthetic", "." + format);
+        file.deleteOnExit();
+        if (!ImageIO.write(create(width, height), format, file)) {
+            throw new IOException("No writer for " + format);
+        }
+        return file;
+    }
+
+    /**
+     * Creates a grid of characters drawn from a charset, as produced by the conversion.
+     *
+     * @param rows    The number of rows.
+     * @param columns The number of columns.
+     * @param charset The characters to draw from.
+     * @return The grid.
+     */
+    static char[][] chars(int rows, int columns, char[] charset) {
+        Random random = new Random(SEED);
+        char[][] chars = new char[rows][columns];
+        for (char[] row : chars) {
+            for (int x = 0; x < columns; x++) {
+                row[x] = charset[random.nextInt(charset.length)];
+            }
+        }
+        return chars;
+    }
+
+    /**
+     * Returns the printable ASCII characters.
+     *
+     * @return The characters from ' ' to '~'.
+     */
+    static char[] printableAscii() {
+        char[] chars = new char['~' - ' ' + 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (' ' + i);
+        }
+        return chars;
+    }
+}
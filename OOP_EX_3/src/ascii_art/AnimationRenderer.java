@@ -0,0 +1,92 @@
+package ascii_art;
+
+import image.Image;
+import image_char_matching.CharMatcherSnapshot;
+import image_char_matching.SubImgCharMatcher;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts the frames of an animation to ASCII art one after the other, reusing the work done for the
+ * previous frame. The first frame is converted in full; in every following frame only the squares whose
+ * pixels changed are calculated and matched again, and every other square keeps the character it had in
+ * the previous frame. Every frame is matched against the charset as it was when the renderer was
+ * constructed, so editing the matcher meanwhile never mixes two charsets in one animation. When the matcher
+ * matches shapes, every frame is converted in full.
+ * The renderer counts the frames, the time spent on them and the squares that were reused.
+ */
+class AnimationRenderer {
+    private static final double NANOS_IN_SECOND = 1_000_000_000.0;
+    private static final double PERCENT = 100.0;
+
+    private final CharMatcherSnapshot charMatcher;
+    private final int numOfLetterInRow;
+    private final ForkJoinPool pool;
+    private Image previousFrame;
+    private char[][] previousChars;
+    private int frames = 0;
+    private long squares = 0;
+    private long reusedSquares = 0;
+    private long nanos = 0;
+
+    /**
+     * Constructs a renderer for one animation.
+     *
+     * @param subImgCharMatcher The matcher used to associate image brightness levels with characters.
+     * @param numOfLetterInRow  The number of characters per row in the generated ASCII art.
+     * @param pool              The pool to convert full frames on, or null to convert sequentially.
+     */
+    AnimationRenderer(SubImgCharMatcher subImgCharMatcher, int numOfLetterInRow, ForkJoinPool pool) {
+        this.charMatcher = subImgCharMatcher.snapshot();
+        this.numOfLetterInRow = numOfLetterInRow;
+        this.pool = pool;
+    }
+
+    /**
+     * Converts the next frame of the animation. The result is the same as converting the frame on its own
+     * with AsciiArtAlgorithm.
+     *
+     * @param frame The next frame, not resized yet.
+     * @return A 2D char array where each element represents a character in the ASCII art of the frame.
+     */
+    char[][] render(Image frame) {
+        long startTime = System.nanoTime();
+        frame.resizeImage();
+        boolean[][] changed = this.previousFrame == null || this.charMatcher.isShapeMatching() ? null :
+                frame.divideIntoSquaresReusing(this.numOfLetterInRow, this.previousFrame);
+        char[][] chars;
+        if (changed == null) {
+            chars = new AsciiArtAlgorithm(this.charMatcher, frame, this.numOfLetterInRow,
+                    this.pool).run();
+        } else {
+            double[][] brightness = frame.getBrightnessArray();
+            chars = new char[brightness.length][brightness[0].length];
+            for (int row = 0; row < chars.length; row++) {
+                for (int col = 0; col < chars[row].length; col++) {
+                    if (changed[row][col]) {
+                        chars[row][col] =
+                                this.charMatcher.getCharByImageBrightness(brightness[row][col]);
+                    } else {
+                        chars[row][col] = this.previousChars[row][col];
+                        this.reusedSquares++;
+                    }
+                }
+            }
+        }
+        this.squares += (long) chars.length * chars[0].length;
+        this.previousFrame = frame;
+        this.previousChars = chars;
+        this.frames++;
+        this.nanos += System.nanoTime() - startTime;
+        return chars;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = this.nanos / NANOS_IN_SECOND;
+        return String.format(Locale.ROOT, "Rendered %d frames in %.2f s (%.2f frames/s), reused %.1f%% of " +
+                        "the squares.", this.frames, seconds, seconds == 0 ? 0 : this.frames / seconds,
+                this.squares == 0 ? 0 : PERCENT * this.reusedSquares / this.squares);
+    }
+}
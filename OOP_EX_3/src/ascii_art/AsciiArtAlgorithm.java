@@ -1,55 +1,349 @@
 package ascii_art;
 
-import ascii_output.AsciiOutput;
-import ascii_output.ConsoleAsciiOutput;
-import ascii_output.HtmlAsciiOutput;
+import ascii_output.StreamingAsciiOutput;
 import image.Image;
+import image_char_matching.CharConverter;
+import image_char_matching.CharMatcherSnapshot;
 import image_char_matching.SubImgCharMatcher;
 
-import java.awt.*;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Implements an algorithm to convert images to ASCII art. This class utilizes the SubImgCharMatcher
  * to match image brightness levels to corresponding characters, facilitating the generation of ASCII art
  * from an image. The algorithm divides the image into squares, calculates the brightness of each square,
  * and matches it with a character that best represents the square's brightness level.
+ * When a ForkJoinPool is given, large images are processed in bands of rows on the pool's threads.
+ * The rows can also be streamed to a StreamingAsciiOutput in order, each band as soon as it is matched, so
+ * the output starts before the whole image is converted. Optionally the average color of every square is
+ * calculated along with its brightness and streamed with the characters.
+ * When the matcher matches shapes, every square is thresholded into a mask of the size of the glyphs and
+ * matched by shape instead of by brightness.
+ * The algorithm matches against a snapshot of the charset taken when it is constructed, so editing the
+ * matcher meanwhile does not affect it, and any number of algorithms may share one snapshot.
  */
 public class AsciiArtAlgorithm {
-    private final SubImgCharMatcher subImgCharMatcher;
+    // Below this number of squares the whole image is processed on the calling thread
+    private static final int PARALLEL_THRESHOLD = 128 * 128;
+    // A band of rows is not split further once it holds this many squares or fewer
+    private static final int SQUARES_PER_BAND = 4096;
+    // While streaming, at most this many bands per thread are converted ahead of the output
+    private static final int BANDS_AHEAD_PER_THREAD = 2;
+
+    private final CharMatcherSnapshot charMatcher;
     private final Image image;
     private final int numOfLetterInRow;
+    private final ForkJoinPool pool;
+    private RenderStats stats; // null unless the stages are measured
+    // The pieces of the brightness and matching stages of the current run, recorded once it ends
+    private RenderStats.StageTotal brightnessTotal;
+    private RenderStats.StageTotal matchTotal;
+    private boolean withColors = false;
 
     /**
      * Constructs an AsciiArtAlgorithm with the specified matcher, image, and layout parameters.
+     * The algorithm runs sequentially on the calling thread.
      *
      * @param subImgCharMatcher The matcher used to associate image brightness levels with characters.
      * @param image             The image to convert to ASCII art.
      * @param numOfLetterInRow  The number of characters per row in the generated ASCII art.
      */
     public AsciiArtAlgorithm(SubImgCharMatcher subImgCharMatcher, Image image, int numOfLetterInRow) {
-        this.subImgCharMatcher = subImgCharMatcher;
+        this(subImgCharMatcher, image, numOfLetterInRow, null);
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm that processes large images in parallel on the given pool.
+     *
+     * @param subImgCharMatcher The matcher used to associate image brightness levels with characters.
+     * @param image             The image to convert to ASCII art.
+     * @param numOfLetterInRow  The number of characters per row in the generated ASCII art.
+     * @param pool              The pool to run on, or null to always run sequentially.
+     */
+    public AsciiArtAlgorithm(SubImgCharMatcher subImgCharMatcher, Image image, int numOfLetterInRow,
+                             ForkJoinPool pool) {
+        this(subImgCharMatcher.snapshot(), image, numOfLetterInRow, pool);
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm that matches against a given snapshot of a charset.
+     *
+     * @param charMatcher      The snapshot used to associate image brightness levels with characters.
+     * @param image            The image to convert to ASCII art.
+     * @param numOfLetterInRow The number of characters per row in the generated ASCII art.
+     * @param pool             The pool to run on, or null to always run sequentially.
+     */
+    public AsciiArtAlgorithm(CharMatcherSnapshot charMatcher, Image image, int numOfLetterInRow,
+                             ForkJoinPool pool) {
+        this.charMatcher = charMatcher;
         this.image = image;
         this.numOfLetterInRow = numOfLetterInRow;
+        this.pool = pool;
+    }
+
+
+    /**
+     * Measures the stages of the following runs. Every run records a single sample of each stage, whose
+     * time adds up all the bands of rows it was split into.
+     *
+     * @param stats The statistics to record the brightness and matching stages in, or null to measure
+     *              nothing.
+     */
+    public void setStats(RenderStats stats) {
+        this.stats = stats;
     }
 
+    /**
+     * Calculates the average color of every square in the following runs, when the brightness is
+     * calculated too. The colors are streamed to the output with the rows.
+     *
+     * @param withColors true to calculate the colors.
+     */
+    public void setColors(boolean withColors) {
+        this.withColors = withColors;
+    }
 
     /**
      * Executes the ASCII art generation algorithm. This method divides the image into squares,
      * calculates the brightness for each square, and uses the SubImgCharMatcher to find the best matching
      * character for each square's brightness. The result is a 2D char array representing the ASCII art.
+     * The result is the same whether the squares are processed sequentially or in parallel.
      *
      * @return A 2D char array where each element represents a character in the ASCII art.
      */
     public char[][] run() {
-        this.image.divideIntoSquaresAndCalculationBrightness(numOfLetterInRow);
-        double[][] a = image.getBrightnessArray();
-        char[][] b = new char[a.length][a[0].length];
-        for (int row = 0; row < a.length; ++row) {
-            for (int col = 0; col < a[row].length; ++col) {
-                b[row][col] = subImgCharMatcher.getCharByImageBrightness(a[row][col]);
-            }
+        return run(null);
+    }
+
+    /**
+     * Executes the ASCII art generation algorithm, reusing a brightness array that was already calculated
+     * for this image and number of characters per row. Only the matching of characters is done then.
+     * Without a brightness array, the brightness is calculated as in run(), and the new array is available
+     * from the image's getBrightnessArray afterwards.
+     *
+     * @param brightnessArray The brightness of every square, or null to calculate it.
+     * @return A 2D char array where each element represents a character in the ASCII art.
+     */
+    public char[][] run(double[][] brightnessArray) {
+        boolean calculateBrightness = brightnessArray == null;
+        startMeasuring();
+        brightnessArray = prepareSquares(brightnessArray);
+        double[][] a = brightnessArray;
+        char[][] b = new char[a.length][];
+        if (pool == null || pool.getParallelism() <= 1 || a.length * a[0].length < PARALLEL_THRESHOLD) {
+            convertRows(a, b, 0, a.length, calculateBrightness);
+        } else {
+            pool.invoke(new RowBandTask(a, b, 0, a.length, calculateBrightness));
         }
+        stopMeasuring(calculateBrightness);
         return b;
     }
+
+    /**
+     * Executes the ASCII art generation algorithm, streaming the rows to an output in order instead of
+     * returning them. The rows are converted in bands; a band is sent to the output as soon as it and all
+     * the bands above it are done, and is not kept afterwards. With a pool, a bounded number of bands is
+     * converted ahead of the output, so a slow output does not make the whole image pile up in memory.
+     * If colors are asked for and the brightness is calculated, every row is sent with its colors.
+     *
+     * @param brightnessArray The brightness of every square, or null to calculate it; see run.
+     * @param output          The output to send the rows to.
+     */
+    public void run(double[][] brightnessArray, StreamingAsciiOutput output) {
+        boolean calculateBrightness = brightnessArray == null;
+        startMeasuring();
+        brightnessArray = prepareSquares(brightnessArray);
+        double[][] a = brightnessArray;
+        char[][] b = new char[a.length][];
+        int[][] colors = calculateBrightness ? image.getColorArray() : null;
+        int rowsPerBand = Math.max(1, SQUARES_PER_BAND / a[0].length);
+        output.begin(a.length, a[0].length);
+        if (pool == null || pool.getParallelism() <= 1 || a.length * a[0].length < PARALLEL_THRESHOLD) {
+            for (int fromRow = 0; fromRow < a.length; fromRow += rowsPerBand) {
+                int toRow = Math.min(a.length, fromRow + rowsPerBand);
+                convertRows(a, b, fromRow, toRow, calculateBrightness);
+                emitRows(b, colors, fromRow, toRow, output);
+            }
+        } else {
+            int maxBandsAhead = pool.getParallelism() * BANDS_AHEAD_PER_THREAD;
+            Queue<ForkJoinTask<?>> bands = new ArrayDeque<>();
+            int nextRow = 0;
+            for (int emittedRow = 0; emittedRow < a.length; emittedRow += rowsPerBand) {
+                while (nextRow < a.length && bands.size() < maxBandsAhead) {
+                    int fromRow = nextRow;
+                    int toRow = Math.min(a.length, fromRow + rowsPerBand);
+                    bands.add(pool.submit(() -> convertRows(a, b, fromRow, toRow, calculateBrightness)));
+                    nextRow = toRow;
+                }
+                bands.remove().join();
+                emitRows(b, colors, emittedRow, Math.min(a.length, emittedRow + rowsPerBand), output);
+            }
+        }
+        stopMeasuring(calculateBrightness);
+        output.end();
+    }
+
+    /**
+     * Starts adding up the pieces of the brightness and matching stages of a run, if they are measured.
+     */
+    private void startMeasuring() {
+        this.brightnessTotal = this.stats == null ? null : new RenderStats.StageTotal();
+        this.matchTotal = this.stats == null ? null : new RenderStats.StageTotal();
+    }
+
+    /**
+     * Records the brightness and matching stages of a run as one sample each, however many bands they
+     * were split into. The brightness stage is recorded only if the image was divided into squares.
+     *
+     * @param calculateBrightness Whether the brightness of the squares was calculated.
+     */
+    private void stopMeasuring(boolean calculateBrightness) {
+        if (this.stats == null) {
+            return;
+        }
+        if (calculateBrightness || charMatcher.isShapeMatching()) {
+            this.brightnessTotal.recordTo(this.stats, RenderStats.Stage.BRIGHTNESS);
+        }
+        this.matchTotal.recordTo(this.stats, RenderStats.Stage.MATCH);
+    }
+
+    /**
+     * Divides the image into squares unless the brightness is already known. Matching shapes reads the
+     * pixels of the squares, so the image is divided for it in any case.
+     *
+     * @param brightnessArray The brightness of every square, or null to calculate it.
+     * @return The given brightness array, or the image's new empty one.
+     */
+    private double[][] prepareSquares(double[][] brightnessArray) {
+        if (brightnessArray == null) {
+            return divideIntoSquares();
+        }
+        if (charMatcher.isShapeMatching()) {
+            divideIntoSquares();
+        }
+        return brightnessArray;
+    }
+
+    /**
+     * Prepares the brightness array of the image, recording the time as part of the brightness stage.
+     *
+     * @return The empty brightness array.
+     */
+    private double[][] divideIntoSquares() {
+        RenderStats.StageTotal brightnessTotal = this.brightnessTotal;
+        long startNanos = brightnessTotal == null ? 0 : System.nanoTime();
+        long startBytes = brightnessTotal == null ? 0 : RenderStats.threadAllocatedBytes();
+        this.image.divideIntoSquares(numOfLetterInRow, withColors);
+        if (brightnessTotal != null) {
+            brightnessTotal.add(startNanos, startBytes, 0);
+        }
+        return image.getBrightnessArray();
+    }
+
+    /**
+     * Sends converted rows to an output, with their colors if there are any, and drops them.
+     */
+    private static void emitRows(char[][] b, int[][] colors, int fromRow, int toRow,
+                                 StreamingAsciiOutput output) {
+        for (int row = fromRow; row < toRow; row++) {
+            if (colors == null) {
+                output.row(b[row]);
+            }
+            else {
+                output.row(b[row], colors[row]);
+            }
+            b[row] = null;
+        }
+    }
+
+    /**
+     * Calculates the brightness of a range of rows of squares if needed, and matches a character to each
+     * of them.
+     *
+     * @param a                   The brightness array of the image.
+     * @param b                   The array to store the rows of characters in.
+     * @param fromRow             The first row to convert, inclusive.
+     * @param toRow               The last row to convert, exclusive.
+     * @param calculateBrightness Whether the brightness of the rows has to be calculated first.
+     */
+    private void convertRows(double[][] a, char[][] b, int fromRow, int toRow, boolean calculateBrightness) {
+        RenderStats.StageTotal brightnessTotal = this.brightnessTotal;
+        RenderStats.StageTotal matchTotal = this.matchTotal;
+        long squares = (long) (toRow - fromRow) * a[0].length;
+        long startNanos = matchTotal == null ? 0 : System.nanoTime();
+        long startBytes = matchTotal == null ? 0 : RenderStats.threadAllocatedBytes();
+        if (calculateBrightness) {
+            this.image.calculationBrightnessOfRows(fromRow, toRow);
+            if (brightnessTotal != null) {
+                brightnessTotal.add(startNanos, startBytes, squares);
+                startNanos = System.nanoTime();
+                startBytes = RenderStats.threadAllocatedBytes();
+            }
+        }
+        if (charMatcher.isShapeMatching()) {
+            matchShapes(b, fromRow, toRow, a[0].length);
+        } else {
+            for (int row = fromRow; row < toRow; ++row) {
+                b[row] = new char[a[row].length];
+                for (int col = 0; col < a[row].length; ++col) {
+                    b[row][col] = charMatcher.getCharByImageBrightness(a[row][col]);
+                }
+            }
+        }
+        if (matchTotal != null) {
+            matchTotal.add(startNanos, startBytes, squares);
+        }
+    }
+
+    /**
+     * Matches a character to the shape of every square in a range of rows.
+     */
+    private void matchShapes(char[][] b, int fromRow, int toRow, int columns) {
+        int maskSize = charMatcher.getShapeMaskSize();
+        long[] mask = new long[CharConverter.wordsPerMask(maskSize)];
+        for (int row = fromRow; row < toRow; ++row) {
+            b[row] = new char[columns];
+            for (int col = 0; col < columns; ++col) {
+                image.shapeMaskOfSquare(row, col, maskSize, mask);
+                b[row][col] = charMatcher.getCharByShape(mask);
+            }
+        }
+    }
+
+    /**
+     * Converts a band of rows, splitting it in two halves as long as it is large enough to be worth
+     * running on separate threads.
+     */
+    private class RowBandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] a;
+        private final char[][] b;
+        private final int fromRow;
+        private final int toRow;
+        private final boolean calculateBrightness;
+
+        RowBandTask(double[][] a, char[][] b, int fromRow, int toRow, boolean calculateBrightness) {
+            this.a = a;
+            this.b = b;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.calculateBrightness = calculateBrightness;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= 1 || (toRow - fromRow) * a[0].length <= SQUARES_PER_BAND) {
+                convertRows(a, b, fromRow, toRow, calculateBrightness);
+                return;
+            }
+            int middleRow = (fromRow + toRow) >>> 1;
+            invokeAll(new RowBandTask(a, b, fromRow, middleRow, calculateBrightness),
+                    new RowBandTask(a, b, middleRow, toRow, calculateBrightness));
+        }
+    }
 }
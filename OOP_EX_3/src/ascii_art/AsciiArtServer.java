@@ -0,0 +1,495 @@
+package ascii_art;
+
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.StreamingAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Image;
+import image_char_matching.CharMatcherSnapshot;
+import image_char_matching.GlyphCache;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the conversion over HTTP, so other processes can convert images without starting a JVM for each.
+ * POST /convert with the image file as the request body returns its ASCII art. The query parameters are
+ * all optional:
+ * - res: the number of characters per row, 128 by default.
+ * - chars: the charset, as BatchConverter takes it: "all", a range such as "a-z", a Unicode block such as
+ *   "braille", or the characters themselves. The digits by default.
+ * - output: "console" for the text the console output prints, "html" for an HTML page, or "color" for an
+ *   HTML page in the colors of the image. Console by default.
+ * - step: the quantization step of the colors, 16 by default.
+ * - match: "brightness" or "shape", brightness by default.
+ * - font: the font of the HTML page: letters, digits, spaces, hyphens and underscores only.
+ * GET /metrics returns the number of requests, the hits of the caches and the latency percentiles of every
+ * stage of the conversions, as the stats command of the shell shows them.
+ * Every request is handled on its own virtual thread. All requests share the glyph cache, one matcher
+ * snapshot per charset and matching mode, and a least-recently-used cache of decoded images keyed by the
+ * SHA-256 of the uploaded bytes, so converting the same image again at another resolution skips the
+ * decoding and the summed-area tables. A cached image is converted by one request at a time.
+ * Images of more than MAX_PIXELS pixels are refused before they are decoded.
+ * Usage: AsciiArtServer [-host address] [-port n] [-cache n], where the cache size is the number of decoded
+ * images kept. The server listens on the loopback address unless another host address is given.
+ */
+public class AsciiArtServer {
+    private static final String USAGE = "Usage: AsciiArtServer [-host address] [-port n] [-cache n]";
+    private static final String HOST_OPTION = "-host";
+    private static final String PORT_OPTION = "-port";
+    private static final String CACHE_OPTION = "-cache";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_IMAGE_CACHE_SIZE = 16;
+    private static final int MATCHER_CACHE_SIZE = 64;
+    private static final int MAX_UPLOAD_BYTES = 64 * 1024 * 1024;
+    private static final long MAX_PIXELS = 32L * 1024 * 1024;
+    private static final int STOP_DELAY_SECONDS = 1;
+    private static final String CONVERT_PATH = "/convert";
+    private static final String METRICS_PATH = "/metrics";
+    private static final String POST = "POST";
+    private static final String GET = "GET";
+    private static final String RES_PARAMETER = "res";
+    private static final String CHARS_PARAMETER = "chars";
+    private static final String OUTPUT_PARAMETER = "output";
+    private static final String STEP_PARAMETER = "step";
+    private static final String MATCH_PARAMETER = "match";
+    private static final String FONT_PARAMETER = "font";
+    private static final String CONSOLE = "console";
+    private static final String HTML = "html";
+    private static final String COLOR = "color";
+    private static final String BRIGHTNESS = "brightness";
+    private static final String SHAPE = "shape";
+    private static final String DEFAULT_CHARS = "0-9";
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final int DEFAULT_COLOR_STEP = 16;
+    private static final int MAX_COLOR_STEP = 256;
+    private static final String DEFAULT_FONT_NAME = "Courier New";
+    // The font name is written into the style of the page, so it may not contain any markup
+    private static final Pattern FONT_NAME_PATTERN = Pattern.compile("[A-Za-z0-9 _-]+");
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final char MATCHER_KEY_SEPARATOR = '\0';
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int INTERNAL_ERROR = 500;
+    private static final String TEXT_TYPE = "text/plain; charset=" + StandardCharsets.UTF_8.name();
+    private static final String HTML_TYPE = "text/html; charset=" + Charset.defaultCharset().name();
+    private static final String PARAMETER_ERROR = "Did not convert due to incorrect parameters.";
+    private static final String IMAGE_ERROR = "Did not convert due to problem with image file.";
+    private static final String BOUNDARIES_ERROR = "Did not convert due to exceeding boundaries.";
+    private static final String SIZE_ERROR = "Did not convert due to image file larger than " +
+            MAX_UPLOAD_BYTES + " bytes.";
+    private static final String PIXELS_ERROR = "Did not convert due to image larger than " + MAX_PIXELS +
+            " pixels.";
+    private static final String METHOD_ERROR = "Method not allowed.";
+    private static final String INTERNAL_ERROR_MESSAGE = "Did not convert due to an internal error.";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final RenderCache.LruMap<String, CachedImage> images; // Guarded by itself
+    private final RenderCache.LruMap<String, CharMatcherSnapshot> matchers; // Guarded by itself
+    private final RenderStats stats = new RenderStats();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong imageHits = new AtomicLong();
+    private final AtomicLong imageMisses = new AtomicLong();
+
+    /**
+     * The answer to a request that cannot be converted.
+     */
+    private static class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * A resized image with the lock that lets one request at a time divide it into squares. It is a lock
+     * rather than a monitor so that a virtual thread waiting for it does not hold on to its carrier thread.
+     */
+    private static class CachedImage {
+        private final Image image;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        CachedImage(Image image) {
+            this.image = image;
+        }
+    }
+
+    /**
+     * Creates a server listening on a port of an address. It handles nothing until it is started.
+     *
+     * @param address        The address to listen on.
+     * @param port           The port to listen on, or 0 for any free port.
+     * @param imageCacheSize The maximal number of decoded images kept between requests.
+     * @throws IOException If the port cannot be bound.
+     */
+    public AsciiArtServer(InetAddress address, int port, int imageCacheSize) throws IOException {
+        this.images = new RenderCache.LruMap<>(imageCacheSize);
+        this.matchers = new RenderCache.LruMap<>(MATCHER_CACHE_SIZE);
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        this.server.setExecutor(this.executor);
+    }
+
+    /**
+     * Starts handling requests, each on its own virtual thread.
+     */
+    public void start() {
+        this.server.createContext(CONVERT_PATH, this::handleConvert);
+        this.server.createContext(METRICS_PATH, this::handleMetrics);
+        this.server.start();
+    }
+
+    /**
+     * Stops handling requests, giving the ones in progress a moment to finish.
+     */
+    public void stop() {
+        this.server.stop(STOP_DELAY_SECONDS);
+        this.executor.shutdown();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
+        long startBytes = RenderStats.threadAllocatedBytes();
+        this.requests.incrementAndGet();
+        try (exchange) {
+            try {
+                if (!exchange.getRequestMethod().equals(POST)) {
+                    throw new RequestException(METHOD_NOT_ALLOWED, METHOD_ERROR);
+                }
+                Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] upload = readUpload(exchange.getRequestBody());
+                String output = parameters.getOrDefault(OUTPUT_PARAMETER, CONSOLE);
+                byte[] body = convert(upload, parameters, output);
+                send(exchange, OK, output.equals(CONSOLE) ? TEXT_TYPE : HTML_TYPE, body);
+                this.stats.record(RenderStats.Stage.RENDER, startNanos, startBytes, 0);
+            } catch (RequestException e) {
+                this.failures.incrementAndGet();
+                sendText(exchange, e.status, e.getMessage());
+            } catch (RuntimeException e) {
+                this.failures.incrementAndGet();
+                Logger.getGlobal().log(Level.SEVERE, "Failed to convert an image", e);
+                sendText(exchange, INTERNAL_ERROR, INTERNAL_ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Converts an uploaded image to ASCII art, as the parameters of the request ask.
+     *
+     * @param upload     The bytes of the image file.
+     * @param parameters The query parameters of the request.
+     * @param output     The output parameter.
+     * @return The body of the response.
+     */
+    private byte[] convert(byte[] upload, Map<String, String> parameters, String output) {
+        int resolution = parseInt(parameters.get(RES_PARAMETER), DEFAULT_RESOLUTION);
+        char[] charset = BatchConverter.parseCharset(parameters.getOrDefault(CHARS_PARAMETER, DEFAULT_CHARS));
+        String match = parameters.getOrDefault(MATCH_PARAMETER, BRIGHTNESS);
+        int colorStep = parseInt(parameters.get(STEP_PARAMETER), DEFAULT_COLOR_STEP);
+        String fontName = parameters.getOrDefault(FONT_PARAMETER, DEFAULT_FONT_NAME);
+        if (resolution < 1 || charset.length == 0 || colorStep < 1 || colorStep > MAX_COLOR_STEP ||
+                !FONT_NAME_PATTERN.matcher(fontName).matches() ||
+                !(match.equals(BRIGHTNESS) || match.equals(SHAPE)) ||
+                !(output.equals(CONSOLE) || output.equals(HTML) || output.equals(COLOR))) {
+            throw new RequestException(BAD_REQUEST, PARAMETER_ERROR);
+        }
+        CharMatcherSnapshot charMatcher = matcher(charset, match.equals(SHAPE));
+        CachedImage cachedImage = image(upload);
+        Image image = cachedImage.image;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        StreamingAsciiOutput asciiOutput = output.equals(CONSOLE) ?
+                new ConsoleAsciiOutput(new PrintStream(body, false, StandardCharsets.UTF_8), false) :
+                new HtmlAsciiOutput(body, fontName, output.equals(COLOR) ? colorStep : 0);
+        // The image keeps the squares of its last division, so it is divided by one request at a time
+        cachedImage.lock.lock();
+        try {
+            int minCharsInRow = Math.max(1, image.getWidthNormal() / image.getHeightNormal());
+            if (resolution < minCharsInRow || !image.isValidResolution(resolution)) {
+                throw new RequestException(BAD_REQUEST, BOUNDARIES_ERROR);
+            }
+            AsciiArtAlgorithm algorithm = new AsciiArtAlgorithm(charMatcher, image, resolution, null);
+            algorithm.setStats(this.stats);
+            algorithm.setColors(output.equals(COLOR));
+            algorithm.run(null, this.stats.timed(asciiOutput));
+        } finally {
+            cachedImage.lock.unlock();
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Returns the matcher snapshot of a charset and matching mode, building it on first use. Snapshots are
+     * immutable, so all the requests read one at the same time. A snapshot is built outside the lock, since
+     * a large charset takes a while to render and would otherwise stall every other request.
+     */
+    private CharMatcherSnapshot matcher(char[] charset, boolean shapeMatching) {
+        String key = new String(charset) + MATCHER_KEY_SEPARATOR + shapeMatching;
+        synchronized (this.matchers) {
+            CharMatcherSnapshot snapshot = this.matchers.get(key);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        SubImgCharMatcher charMatcher = new SubImgCharMatcher(charset);
+        charMatcher.setShapeMatching(shapeMatching);
+        CharMatcherSnapshot snapshot = charMatcher.snapshot();
+        synchronized (this.matchers) {
+            // Another request may have built the same snapshot meanwhile
+            CharMatcherSnapshot cached = this.matchers.putIfAbsent(key, snapshot);
+            return cached == null ? snapshot : cached;
+        }
+    }
+
+    /**
+     * Returns the resized image of an uploaded file, decoding it unless the same bytes were uploaded
+     * recently.
+     */
+    private CachedImage image(byte[] upload) {
+        String key = digest(upload);
+        synchronized (this.images) {
+            CachedImage image = this.images.get(key);
+            if (image != null) {
+                this.imageHits.incrementAndGet();
+                return image;
+            }
+        }
+        this.imageMisses.incrementAndGet();
+        long startNanos = System.nanoTime();
+        long startBytes = RenderStats.threadAllocatedBytes();
+        Image image = new Image(decode(upload));
+        this.stats.record(RenderStats.Stage.DECODE, startNanos, startBytes,
+                (long) image.getWidth() * image.getHeight());
+        startNanos = System.nanoTime();
+        startBytes = RenderStats.threadAllocatedBytes();
+        image.resizeImage();
+        this.stats.record(RenderStats.Stage.RESIZE, startNanos, startBytes, 0);
+        synchronized (this.images) {
+            // Another request may have decoded the same bytes meanwhile
+            CachedImage cached = this.images.putIfAbsent(key, new CachedImage(image));
+            return cached == null ? this.images.get(key) : cached;
+        }
+    }
+
+    /**
+     * Decodes an uploaded image file, reading its size from the header first so that images of more than
+     * MAX_PIXELS pixels are refused before their pixels are allocated.
+     */
+    private static BufferedImage decode(byte[] upload) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(upload))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new RequestException(BAD_REQUEST, IMAGE_ERROR);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                    throw new RequestException(PAYLOAD_TOO_LARGE, PIXELS_ERROR);
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RequestException(BAD_REQUEST, IMAGE_ERROR);
+        }
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance(DIGEST_ALGORITHM).digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals(GET)) {
+                sendText(exchange, METHOD_NOT_ALLOWED, METHOD_ERROR);
+                return;
+            }
+            sendText(exchange, OK, metrics());
+        }
+    }
+
+    /**
+     * Returns the counters of the server followed by the statistics of every stage.
+     *
+     * @return The metrics, as text.
+     */
+    public String metrics() {
+        int cachedImages;
+        int cachedMatchers;
+        synchronized (this.images) {
+            cachedImages = this.images.size();
+        }
+        synchronized (this.matchers) {
+            cachedMatchers = this.matchers.size();
+        }
+        return String.format(Locale.ROOT, "Requests: %d, failed: %d.%n" +
+                        "Image cache: %d hits, %d misses, %d images.%nMatchers: %d.%n%s%n",
+                this.requests.get(), this.failures.get(), this.imageHits.get(), this.imageMisses.get(),
+                cachedImages, cachedMatchers, this.stats);
+    }
+
+    /**
+     * Reads the whole request body, refusing bodies larger than MAX_UPLOAD_BYTES.
+     */
+    private static byte[] readUpload(InputStream body) throws IOException {
+        byte[] upload = body.readNBytes(MAX_UPLOAD_BYTES + 1);
+        if (upload.length > MAX_UPLOAD_BYTES) {
+            throw new RequestException(PAYLOAD_TOO_LARGE, SIZE_ERROR);
+        }
+        if (upload.length == 0) {
+            throw new RequestException(BAD_REQUEST, IMAGE_ERROR);
+        }
+        return upload;
+    }
+
+    /**
+     * Splits a raw query string into its decoded parameters. A parameter given twice keeps its last value.
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(BAD_REQUEST, PARAMETER_ERROR);
+        }
+        return parameters;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new RequestException(BAD_REQUEST, PARAMETER_ERROR);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        send(exchange, status, TEXT_TYPE, (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    /**
+     * Runs the server until the JVM is stopped; see the class documentation for the arguments. The glyph
+     * cache is saved when it stops.
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int port = DEFAULT_PORT;
+        int imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+        try {
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException();
+            }
+            for (int i = 0; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case HOST_OPTION: address = parseAddress(args[i + 1]); break;
+                    case PORT_OPTION: port = Integer.parseInt(args[i + 1]); break;
+                    case CACHE_OPTION: imageCacheSize = Integer.parseInt(args[i + 1]); break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        if (port < 0 || imageCacheSize < 1) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        AsciiArtServer server;
+        try {
+            server = new AsciiArtServer(address, port, imageCacheSize);
+        } catch (IOException e) {
+            System.out.println("Did not start due to problem with address " + address.getHostAddress() +
+                    " port " + port + ".");
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            GlyphCache.getInstance().saveQuietly();
+        }));
+        server.start();
+        System.out.println("Listening on " + address.getHostAddress() + " port " + server.getPort() + ".");
+    }
+
+    private static InetAddress parseAddress(String host) {
+        try {
+            return InetAddress.getByName(host);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(host, e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package ascii_art;
+
+import ascii_output.HtmlAsciiOutput;
+import image.Image;
+import image_char_matching.CharMatcherSnapshot;
+import image_char_matching.GlyphCache;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Converts many images to HTML ASCII art without any interaction. The input is either a directory, whose
+ * image files are all converted, or a text file listing one image path per line. Every image is written to
+ * the output directory as an HTML file named after it.
+ * The images are converted concurrently on a fixed number of worker threads. All the workers share a single
+ * immutable snapshot of a SubImgCharMatcher, built once from the charset before the first image is
+ * submitted, so matching a brightness only reads it. Each worker holds a single image at a time, so the
+ * memory in use is bounded by the number of workers and not by the number of images.
+ * The latency of every image is printed as soon as it is done, followed by the overall throughput.
+ * Usage: BatchConverter input output [-res n] [-chars charset] [-threads n] [-font name], where the charset
+ * is "all" for all the printable ASCII characters, a range such as "a-z", a Unicode block such as "box" or
+ * a range of code points such as "U+2800-U+28FF", or a list of characters.
+ */
+public class BatchConverter {
+    private static final String USAGE = "Usage: BatchConverter <input directory or list file> " +
+            "<output directory> [-res n] [-chars charset] [-threads n] [-font name]";
+    private static final String RES_OPTION = "-res";
+    private static final String CHARS_OPTION = "-chars";
+    private static final String THREADS_OPTION = "-threads";
+    private static final String FONT_OPTION = "-font";
+    private static final String ALL = "all";
+    private static final char HYPHEN = '-';
+    private static final int RANGE_LENGTH = 3;
+    private static final char FIRST_ASCII_CHAR = 32;
+    private static final char LAST_ASCII_CHAR = 126;
+    private static final char[] DEFAULT_CHARS = {'0','1','2','3','4','5','6','7','8','9'};
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_FONT_NAME = "Courier New";
+    private static final String HTML_SUFFIX = ".html";
+    private static final String DUPLICATE_SEPARATOR = "_";
+    private static final double NANOS_IN_MILLI = 1_000_000.0;
+    private static final double NANOS_IN_SECOND = 1_000_000_000.0;
+
+    private final CharMatcherSnapshot charMatcher;
+    private final int resolution;
+    private final int threads;
+    private final String fontName;
+
+    /**
+     * The outcome of converting one image.
+     */
+    private static class Conversion {
+        private final Path input;
+        private final long nanos;
+        private final String error;
+
+        Conversion(Path input, long nanos, String error) {
+            this.input = input;
+            this.nanos = nanos;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Constructs a batch converter. The matcher is built here, once, and only its snapshot is read by the
+     * workers.
+     *
+     * @param charset    The characters to draw the ASCII art with.
+     * @param resolution The number of characters per row of the ASCII art.
+     * @param threads    The number of images converted at the same time.
+     * @param fontName   The font of the HTML output.
+     */
+    public BatchConverter(char[] charset, int resolution, int threads, String fontName) {
+        this.charMatcher = new SubImgCharMatcher(charset).snapshot();
+        this.resolution = resolution;
+        this.threads = threads;
+        this.fontName = fontName;
+    }
+
+    /**
+     * Converts every given image into the output directory, printing the latency of each image and the
+     * overall number of images per second.
+     *
+     * @param inputs    The image files to convert.
+     * @param outputDir The directory to write the HTML files to.
+     * @return The number of images that could not be converted.
+     * @throws IOException If the output directory cannot be created.
+     */
+    public int convertAll(List<Path> inputs, Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        List<Path> outputs = outputPaths(inputs, outputDir);
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+        CompletionService<Conversion> completionService = new ExecutorCompletionService<>(workers);
+        Map<Future<Conversion>, Path> inputOfTask = new HashMap<>();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < inputs.size(); i++) {
+            Path input = inputs.get(i);
+            Path output = outputs.get(i);
+            inputOfTask.put(completionService.submit(() -> convert(input, output)), input);
+        }
+        int failures = 0;
+        long maxNanos = 0;
+        long totalNanos = 0;
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                Future<Conversion> task = completionService.take();
+                Conversion conversion;
+                try {
+                    conversion = task.get();
+                } catch (ExecutionException e) {
+                    // One image that breaks the converter must not abort the rest of the batch
+                    conversion = new Conversion(inputOfTask.get(task), 0,
+                            "Did not convert due to internal error: " + e.getCause());
+                }
+                if (conversion.error != null) {
+                    failures++;
+                    System.out.println(conversion.input + ": " + conversion.error);
+                    continue;
+                }
+                maxNanos = Math.max(maxNanos, conversion.nanos);
+                totalNanos += conversion.nanos;
+                System.out.println(String.format(Locale.ROOT, "%s: %.2f ms", conversion.input,
+                        conversion.nanos / NANOS_IN_MILLI));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - startTime) / NANOS_IN_SECOND;
+        int converted = inputs.size() - failures;
+        System.out.println(String.format(Locale.ROOT,
+                "Converted %d of %d images in %.2f s on %d threads: %.2f images/s, " +
+                        "mean latency %.2f ms, max latency %.2f ms.",
+                converted, inputs.size(), seconds, this.threads, converted / seconds,
+                converted == 0 ? 0 : totalNanos / NANOS_IN_MILLI / converted, maxNanos / NANOS_IN_MILLI));
+        return failures;
+    }
+
+    /**
+     * Converts a single image, on a worker thread.
+     *
+     * @param input  The image file.
+     * @param output The HTML file to write.
+     * @return The outcome of the conversion.
+     */
+    private Conversion convert(Path input, Path output) {
+        long startTime = System.nanoTime();
+        Image image;
+        try {
+            image = new Image(input.toString());
+        } catch (IOException | RuntimeException e) {
+            return new Conversion(input, 0, "Did not convert due to problem with image file.");
+        }
+        image.resizeImage();
+        int minCharsInRow = Math.max(1, image.getWidthNormal() / image.getHeightNormal());
+        if (this.resolution < minCharsInRow || !image.isValidResolution(this.resolution)) {
+            return new Conversion(input, 0, "Did not convert due to exceeding boundaries.");
+        }
+        // The rows are written as they are matched, so the whole ASCII art is never held in memory
+        HtmlAsciiOutput htmlOutput = new HtmlAsciiOutput(output.toString(), this.fontName, true);
+        new AsciiArtAlgorithm(this.charMatcher, image, this.resolution, null).run(null, htmlOutput);
+        if (htmlOutput.hasFailed()) {
+            return new Conversion(input, 0, "Did not convert due to problem with output file.");
+        }
+        return new Conversion(input, System.nanoTime() - startTime, null);
+    }
+
+    /**
+     * Names the HTML file of every image after the image file. Images with the same file name in different
+     * directories get a numeric suffix, so no output overwrites another.
+     *
+     * @param inputs    The image files.
+     * @param outputDir The output directory.
+     * @return The HTML file of every image, in the same order.
+     */
+    private static List<Path> outputPaths(List<Path> inputs, Path outputDir) {
+        List<Path> outputs = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Path input : inputs) {
+            String baseName = input.getFileName().toString();
+            String name = baseName + HTML_SUFFIX;
+            for (int i = 1; !names.add(name); i++) {
+                name = baseName + DUPLICATE_SEPARATOR + i + HTML_SUFFIX;
+            }
+            outputs.add(outputDir.resolve(name));
+        }
+        return outputs;
+    }
+
+    /**
+     * Lists the images to convert. The image files of a directory are listed in name order, skipping files
+     * whose suffix no ImageIO reader knows; a list file is read one path per line, skipping blank lines.
+     *
+     * @param input A directory or a list file.
+     * @return The image files.
+     * @throws IOException If the directory or file cannot be read.
+     */
+    private static List<Path> listInputs(Path input) throws IOException {
+        if (!Files.isDirectory(input)) {
+            List<Path> inputs = new ArrayList<>();
+            for (String line : Files.readAllLines(input)) {
+                if (!line.isBlank()) {
+                    inputs.add(Paths.get(line.strip()));
+                }
+            }
+            return inputs;
+        }
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        try (Stream<Path> files = Files.list(input)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> suffixes.contains(suffixOf(file)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static String suffixOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Parses a charset argument: "all", a range of characters such as "a-z", a Unicode block or range of
+     * code points as CharRanges parses them, such as "braille" or "U+2500-U+257F", or the characters
+     * themselves.
+     *
+     * @param argument The charset argument.
+     * @return The characters of the charset.
+     */
+    static char[] parseCharset(String argument) {
+        if (argument.equals(ALL)) {
+            return range(FIRST_ASCII_CHAR, LAST_ASCII_CHAR);
+        }
+        char[] unicodeChars = CharRanges.parse(argument);
+        if (unicodeChars != null) {
+            return unicodeChars;
+        }
+        if (argument.length() == RANGE_LENGTH && argument.charAt(1) == HYPHEN) {
+            char first = argument.charAt(0);
+            char last = argument.charAt(2);
+            return range((char) Math.min(first, last), (char) Math.max(first, last));
+        }
+        return argument.toCharArray();
+    }
+
+    private static char[] range(char first, char last) {
+        char[] chars = new char[last - first + 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (first + i);
+        }
+        return chars;
+    }
+
+    /**
+     * Runs the batch converter; see the class documentation for the arguments. Exits with a non-zero status
+     * if the arguments are wrong or any image could not be converted.
+     *
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length % 2 != 0) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        char[] charset = DEFAULT_CHARS;
+        int resolution = DEFAULT_RESOLUTION;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String fontName = DEFAULT_FONT_NAME;
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case RES_OPTION: resolution = Integer.parseInt(args[i + 1]); break;
+                    case CHARS_OPTION: charset = parseCharset(args[i + 1]); break;
+                    case THREADS_OPTION: threads = Integer.parseInt(args[i + 1]); break;
+                    case FONT_OPTION: fontName = args[i + 1]; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        if (resolution < 1 || threads < 1 || charset.length == 0) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        int failures;
+        try {
+            List<Path> inputs = listInputs(Paths.get(args[0]));
+            failures = new BatchConverter(charset, resolution, threads, fontName)
+                    .convertAll(inputs, Paths.get(args[1]));
+        } catch (IOException e) {
+            System.out.println("Did not execute due to problem with input or output path.");
+            System.exit(1);
+            return;
+        }
+        GlyphCache.getInstance().saveQuietly();
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
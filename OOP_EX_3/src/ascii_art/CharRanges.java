@@ -0,0 +1,92 @@
+package ascii_art;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the charset arguments that name whole ranges of Unicode characters: either a named block, such as
+ * "box" or "braille", or a range of code points written as "U+2500-U+257F" (a single code point, such as
+ * "U+2588", is a range of one). Only characters of the Basic Multilingual Plane can be named.
+ * A range keeps only the characters that can stand for themselves in ASCII art: code points that Unicode
+ * leaves unassigned, surrogates, control and private use characters are skipped, so a range can be given
+ * with its block's bounds even where the block has holes.
+ */
+class CharRanges {
+    private static final String CODE_POINT_PREFIX = "U+";
+    private static final char HYPHEN = '-';
+    private static final int HEX_RADIX = 16;
+    private static final int MAX_HEX_DIGITS = 4;
+    private static final Map<String, char[]> BLOCKS = Map.of(
+            "latin1", new char[]{'\u00A1', '\u00FF'},
+            "greek", new char[]{'\u0370', '\u03FF'},
+            "cyrillic", new char[]{'\u0400', '\u04FF'},
+            "box", new char[]{'\u2500', '\u257F'},
+            "blocks", new char[]{'\u2580', '\u259F'},
+            "shapes", new char[]{'\u25A0', '\u25FF'},
+            "braille", new char[]{'\u2800', '\u28FF'},
+            "cjk", new char[]{'\u4E00', '\u9FFF'});
+
+    private CharRanges() {
+    }
+
+    /**
+     * Parses a named block or a range of code points.
+     *
+     * @param argument The argument of a charset command.
+     * @return The usable characters of the range, in increasing order, or null if the argument is neither a
+     *         block name nor a well-formed range.
+     */
+    static char[] parse(String argument) {
+        char[] block = BLOCKS.get(argument);
+        if (block != null) {
+            return usableChars(block[0], block[1]);
+        }
+        String upperCase = argument.toUpperCase(Locale.ROOT);
+        if (!upperCase.startsWith(CODE_POINT_PREFIX)) {
+            return null;
+        }
+        int hyphen = upperCase.indexOf(HYPHEN);
+        int first = parseCodePoint(hyphen < 0 ? upperCase : upperCase.substring(0, hyphen));
+        int last = hyphen < 0 ? first : parseCodePoint(upperCase.substring(hyphen + 1));
+        if (first < 0 || last < 0) {
+            return null;
+        }
+        return usableChars((char) Math.min(first, last), (char) Math.max(first, last));
+    }
+
+    /**
+     * Parses a code point written as "U+" followed by one to four hexadecimal digits.
+     *
+     * @return The code point, or -1 if it is not well-formed.
+     */
+    private static int parseCodePoint(String codePoint) {
+        if (!codePoint.startsWith(CODE_POINT_PREFIX)) {
+            return -1;
+        }
+        String digits = codePoint.substring(CODE_POINT_PREFIX.length());
+        if (digits.isEmpty() || digits.length() > MAX_HEX_DIGITS) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (Character.digit(digits.charAt(i), HEX_RADIX) < 0) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(digits, HEX_RADIX);
+    }
+
+    /**
+     * Collects the characters of a range that can be drawn; see the class documentation.
+     */
+    private static char[] usableChars(char first, char last) {
+        StringBuilder chars = new StringBuilder(last - first + 1);
+        for (int c = first; c <= last; c++) {
+            int type = Character.getType(c);
+            if (type != Character.UNASSIGNED && type != Character.SURROGATE && type != Character.CONTROL &&
+                    type != Character.PRIVATE_USE) {
+                chars.append((char) c);
+            }
+        }
+        return chars.toString().toCharArray();
+    }
+}
@@ -0,0 +1,149 @@
+package ascii_art;
+
+import image.FrameSequence;
+import image.Image;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes and resizes images, and builds their summed-area tables, on a background thread, so the shell
+ * takes the next command while an image loads and waits for it only when the image is needed. Images can
+ * also be queued ahead: a queued image is decoded as soon as the thread is free, and loading it later picks
+ * up the work already done.
+ * The images are loaded one at a time, in the order they were asked for, so at most one image is being
+ * decoded and at most MAX_QUEUED images wait in memory for their turn. The loader is used from the shell's
+ * thread only.
+ */
+class ImageLoader implements AutoCloseable {
+    private static final int MAX_QUEUED = 4;
+    private static final String THREAD_NAME = "image-loader";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+        // The loader never keeps the JVM alive once the shell has exited
+        Thread thread = new Thread(task, THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Future<LoadedImage>> queued = new LinkedHashMap<>();
+
+    /**
+     * An image that is decoded and resized.
+     */
+    static class LoadedImage {
+        private final Image image;
+        private final String animationPath;
+
+        LoadedImage(Image image, String animationPath) {
+            this.image = image;
+            this.animationPath = animationPath;
+        }
+
+        /**
+         * Returns the resized image; for an animation, its first frame.
+         *
+         * @return The image.
+         */
+        Image getImage() {
+            return image;
+        }
+
+        /**
+         * Returns the path of the animation the image is the first frame of.
+         *
+         * @return The path of the frames, or null for a still image.
+         */
+        String getAnimationPath() {
+            return animationPath;
+        }
+    }
+
+    /**
+     * Starts loading an image, or takes over the loading of a queued one.
+     *
+     * @param path  The image file, or an animation as FrameSequence reads it.
+     * @param stats The statistics to record the decoding and resizing in, or null.
+     * @return The image, once it is loaded. Getting it throws an ExecutionException caused by an
+     *         IOException if the file cannot be read.
+     */
+    Future<LoadedImage> load(String path, RenderStats stats) {
+        Future<LoadedImage> image = this.queued.remove(path);
+        return image != null ? image : this.executor.submit(() -> decode(path, stats));
+    }
+
+    /**
+     * Queues an image to be loaded ahead of the command that uses it.
+     *
+     * @param path  The image file, or an animation as FrameSequence reads it.
+     * @param stats The statistics to record the decoding and resizing in, or null.
+     * @return true if the image is queued, false if MAX_QUEUED images are queued already.
+     */
+    boolean queue(String path, RenderStats stats) {
+        if (this.queued.containsKey(path)) {
+            return true;
+        }
+        if (this.queued.size() >= MAX_QUEUED) {
+            return false;
+        }
+        this.queued.put(path, this.executor.submit(() -> decode(path, stats)));
+        return true;
+    }
+
+    /**
+     * Returns the number of queued images.
+     *
+     * @return The number of images queued and not loaded yet.
+     */
+    int queuedCount() {
+        return this.queued.size();
+    }
+
+    /**
+     * Stops the background thread, abandoning the images that are still loading.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        this.queued.clear();
+    }
+
+    /**
+     * Decodes and resizes an image and builds its summed-area table, on the background thread.
+     */
+    private static LoadedImage decode(String path, RenderStats stats) throws IOException {
+        long startNanos = stats == null ? 0 : System.nanoTime();
+        long startBytes = stats == null ? 0 : RenderStats.threadAllocatedBytes();
+        String animationPath = null;
+        Image image;
+        if (FrameSequence.isFrameSequence(path)) {
+            // The first frame stands for the whole animation when the resolution is checked
+            try (FrameSequence frames = new FrameSequence(path)) {
+                image = frames.nextFrame();
+            }
+            animationPath = path;
+        }
+        else {
+            image = new Image(path);
+        }
+        if (stats != null) {
+            stats.record(RenderStats.Stage.DECODE, startNanos, startBytes,
+                    (long) image.getWidth() * image.getHeight());
+            startNanos = System.nanoTime();
+            startBytes = RenderStats.threadAllocatedBytes();
+        }
+        image.resizeImage();
+        if (animationPath == null) {
+            // The summed-area table is the costly part of the first render; every animation frame is
+            // decoded again when it is rendered, so only a still image is worth preparing
+            image.prepareSquares();
+        }
+        if (stats != null) {
+            stats.record(RenderStats.Stage.RESIZE, startNanos, startBytes, 0);
+        }
+        return new LoadedImage(image, animationPath);
+    }
+}
@@ -0,0 +1,66 @@
+package ascii_art;
+
+import ascii_output.StreamingAsciiOutput;
+
+/**
+ * Passes streamed rows on to another output while keeping a copy of them, so the complete frame is
+ * available once it has been output. Frames of more than a given number of characters are passed on
+ * without being copied, so a large frame still needs only the memory of a row.
+ */
+class RecordingAsciiOutput implements StreamingAsciiOutput {
+    private final StreamingAsciiOutput output;
+    private final long maxChars;
+    private char[][] chars;
+    private int nextRow;
+
+    /**
+     * Constructs a recording output.
+     *
+     * @param output   The output to pass the rows on to.
+     * @param maxChars The number of characters of the largest frame that is recorded.
+     */
+    RecordingAsciiOutput(StreamingAsciiOutput output, long maxChars) {
+        this.output = output;
+        this.maxChars = maxChars;
+    }
+
+    @Override
+    public void begin(int rows, int columns) {
+        this.chars = (long) rows * columns > this.maxChars ? null : new char[rows][];
+        this.nextRow = 0;
+        this.output.begin(rows, columns);
+    }
+
+    @Override
+    public void row(char[] row) {
+        record(row);
+        this.output.row(row);
+    }
+
+    @Override
+    public void row(char[] row, int[] colors) {
+        record(row);
+        this.output.row(row, colors);
+    }
+
+    private void record(char[] row) {
+        if (this.chars != null) {
+            this.chars[this.nextRow++] = row.clone();
+        }
+    }
+
+    @Override
+    public void end() {
+        this.output.end();
+    }
+
+    /**
+     * Returns the rows of the last frame.
+     *
+     * @return A 2D char array holding every row that was output, or null if the frame was too large to be
+     *         recorded.
+     */
+    char[][] getChars() {
+        return this.chars;
+    }
+}
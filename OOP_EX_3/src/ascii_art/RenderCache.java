@@ -0,0 +1,144 @@
+package ascii_art;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded least-recently-used caches of the two expensive products of a render: the brightness grid of an
+ * image at a resolution, and the ASCII art matched from it with a specific charset. Images and charsets
+ * are identified by version numbers rather than held by reference, so the cache never keeps a replaced
+ * image alive. A charset edit invalidates only the matched results; the brightness grids stay valid.
+ */
+class RenderCache {
+    private final LruMap<Key, char[][]> results;
+    private final LruMap<Key, double[][]> brightnessGrids;
+    private long resultHits = 0;
+    private long resultMisses = 0;
+    private long brightnessHits = 0;
+    private long brightnessMisses = 0;
+
+    /**
+     * A least-recently-used map holding at most a fixed number of entries. It is not synchronized.
+     */
+    static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(capacity, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Identifies a render: the image version, the resolution and, for matched results, the charset
+     * version.
+     */
+    private static class Key {
+        private final long imageVersion;
+        private final int resolution;
+        private final long charsetVersion;
+
+        Key(long imageVersion, int resolution, long charsetVersion) {
+            this.imageVersion = imageVersion;
+            this.resolution = resolution;
+            this.charsetVersion = charsetVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return imageVersion == other.imageVersion && resolution == other.resolution &&
+                    charsetVersion == other.charsetVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageVersion, resolution, charsetVersion);
+        }
+    }
+
+    /**
+     * Creates empty caches.
+     *
+     * @param capacity The maximal number of entries kept in each of the two caches.
+     */
+    RenderCache(int capacity) {
+        this.results = new LruMap<>(capacity);
+        this.brightnessGrids = new LruMap<>(capacity);
+    }
+
+    /**
+     * Looks up a matched result, counting a hit or a miss.
+     *
+     * @param imageVersion   The version of the image.
+     * @param resolution     The number of characters per row.
+     * @param charsetVersion The version of the charset.
+     * @return The cached ASCII art, or null if it is not cached.
+     */
+    char[][] getResult(long imageVersion, int resolution, long charsetVersion) {
+        char[][] result = results.get(new Key(imageVersion, resolution, charsetVersion));
+        if (result == null) {
+            resultMisses++;
+        } else {
+            resultHits++;
+        }
+        return result;
+    }
+
+    /**
+     * Stores a matched result. The array must not be modified afterwards.
+     *
+     * @param imageVersion   The version of the image.
+     * @param resolution     The number of characters per row.
+     * @param charsetVersion The version of the charset.
+     * @param result         The ASCII art.
+     */
+    void putResult(long imageVersion, int resolution, long charsetVersion, char[][] result) {
+        results.put(new Key(imageVersion, resolution, charsetVersion), result);
+    }
+
+    /**
+     * Looks up a brightness grid, counting a hit or a miss.
+     *
+     * @param imageVersion The version of the image.
+     * @param resolution   The number of squares per row.
+     * @return The cached brightness grid, or null if it is not cached.
+     */
+    double[][] getBrightness(long imageVersion, int resolution) {
+        double[][] brightness = brightnessGrids.get(new Key(imageVersion, resolution, 0));
+        if (brightness == null) {
+            brightnessMisses++;
+        } else {
+            brightnessHits++;
+        }
+        return brightness;
+    }
+
+    /**
+     * Stores a brightness grid. The array must not be modified afterwards.
+     *
+     * @param imageVersion The version of the image.
+     * @param resolution   The number of squares per row.
+     * @param brightness   The brightness grid.
+     */
+    void putBrightness(long imageVersion, int resolution, double[][] brightness) {
+        brightnessGrids.put(new Key(imageVersion, resolution, 0), brightness);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Render cache: %d hits, %d misses. Brightness cache: %d hits, %d misses.",
+                resultHits, resultMisses, brightnessHits, brightnessMisses);
+    }
+}
@@ -0,0 +1,373 @@
+package ascii_art;
+
+import ascii_output.StreamingAsciiOutput;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the wall time, the bytes allocated and the number of squares of every stage of a render, and
+ * aggregates the times into latency histograms. Every measurement is taken on the thread doing the work,
+ * so when squares are converted in parallel, the times of a stage add up the time of all the threads.
+ * Recording is thread safe. Nothing records anything unless a RenderStats is handed to it, so a render
+ * without statistics pays nothing for them.
+ * The JVM does not count the bytes allocated by virtual threads, nor by any thread on some JVMs. When a
+ * sample of a stage ran where allocation cannot be counted, the allocation of that stage is shown as
+ * unknown rather than as an understated total.
+ */
+public class RenderStats {
+    private static final int BUCKETS = Long.SIZE; // Bucket i holds the times in [2^i, 2^(i+1)) ns
+    private static final double NANOS_IN_MILLI = 1_000_000.0;
+    private static final double BYTES_IN_MEGABYTE = 1024.0 * 1024.0;
+    private static final double PIXELS_IN_MEGAPIXEL = 1_000_000.0;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final String UNKNOWN = "n/a";
+    private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+
+    /**
+     * The stages of a render.
+     */
+    public enum Stage {
+        /** Reading and unpacking the image file. Its squares are the pixels of the decoded images. */
+        DECODE,
+        /** Padding the image and building its tables. */
+        RESIZE,
+        /** Calculating the brightness of the squares. */
+        BRIGHTNESS,
+        /** Matching a character to every square. */
+        MATCH,
+        /** Writing the characters out. */
+        OUTPUT,
+        /** A whole render command, from the request to the last character written. */
+        RENDER
+    }
+
+    private final StageStats[] stages = new StageStats[Stage.values().length];
+
+    /**
+     * Adds up the pieces of one execution of a stage, such as the bands of rows of a render that run on
+     * different threads, so that the whole execution is recorded as a single sample. Pieces may be added
+     * from any number of threads at once.
+     */
+    public static class StageTotal {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder unknownBytes = new LongAdder(); // Pieces that could not count allocation
+        private final LongAdder squares = new LongAdder();
+
+        /**
+         * Adds a piece of the stage that ran on the current thread and ends now.
+         *
+         * @param startNanos The value of System.nanoTime when the piece started.
+         * @param startBytes The value of threadAllocatedBytes when the piece started.
+         * @param squares    The number of squares the piece handled, or 0.
+         */
+        public void add(long startNanos, long startBytes, long squares) {
+            this.nanos.add(System.nanoTime() - startNanos);
+            long bytes = allocatedSince(startBytes);
+            if (bytes < 0) {
+                this.unknownBytes.increment();
+            } else {
+                this.bytes.add(bytes);
+            }
+            this.squares.add(squares);
+        }
+
+        /**
+         * Records the sum of the pieces as one execution of a stage.
+         *
+         * @param stats The statistics to record in.
+         * @param stage The stage.
+         */
+        public void recordTo(RenderStats stats, Stage stage) {
+            stats.stages[stage.ordinal()].add(this.nanos.sum(),
+                    this.unknownBytes.sum() > 0 ? -1 : this.bytes.sum(), this.squares.sum());
+        }
+    }
+
+    /**
+     * The measurements of one stage.
+     */
+    private static class StageStats {
+        private final long[] histogram = new long[BUCKETS];
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long allocatedBytes = 0;
+        private boolean allocationUnknown = false; // Whether a sample could not count its allocation
+        private long squares = 0;
+
+        synchronized void clear() {
+            Arrays.fill(this.histogram, 0);
+            this.count = 0;
+            this.totalNanos = 0;
+            this.maxNanos = 0;
+            this.allocatedBytes = 0;
+            this.allocationUnknown = false;
+            this.squares = 0;
+        }
+
+        /**
+         * Adds a sample; bytes is negative if the allocation of the sample could not be counted.
+         */
+        synchronized void add(long nanos, long bytes, long squares) {
+            this.histogram[bucketOf(nanos)]++;
+            this.count++;
+            this.totalNanos += nanos;
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+            if (bytes < 0) {
+                this.allocationUnknown = true;
+            } else {
+                this.allocatedBytes += bytes;
+            }
+            this.squares += squares;
+        }
+
+        /**
+         * Estimates a percentile of the times from the histogram, as the upper end of the bucket that
+         * holds it.
+         */
+        synchronized long percentileNanos(double percentile) {
+            long rank = (long) Math.ceil(percentile * this.count);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += this.histogram[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(this.maxNanos, upperBoundOf(bucket));
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Constructs empty statistics.
+     */
+    public RenderStats() {
+        for (int i = 0; i < this.stages.length; i++) {
+            this.stages[i] = new StageStats();
+        }
+    }
+
+    /**
+     * Forgets all the measurements.
+     */
+    public synchronized void reset() {
+        for (StageStats stats : this.stages) {
+            stats.clear();
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, to be passed to record.
+     *
+     * @return The bytes allocated by the current thread, or -1 if the JVM does not count them for it, as
+     *         for a virtual thread.
+     */
+    public static long threadAllocatedBytes() {
+        return ALLOCATION_BEAN == null ? -1 : ALLOCATION_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread since threadAllocatedBytes returned the
+     * given value.
+     *
+     * @param startBytes The value of threadAllocatedBytes at the start.
+     * @return The bytes allocated since, or -1 if they cannot be counted.
+     */
+    private static long allocatedSince(long startBytes) {
+        if (startBytes < 0) {
+            return -1;
+        }
+        long bytes = threadAllocatedBytes();
+        return bytes < 0 ? -1 : bytes - startBytes;
+    }
+
+    /**
+     * Records one execution of a stage that ran on the current thread and ends now.
+     *
+     * @param stage      The stage.
+     * @param startNanos The value of System.nanoTime when the stage started.
+     * @param startBytes The value of threadAllocatedBytes when the stage started.
+     * @param squares    The number of squares the stage handled, or 0.
+     */
+    public void record(Stage stage, long startNanos, long startBytes, long squares) {
+        long nanos = System.nanoTime() - startNanos;
+        this.stages[stage.ordinal()].add(nanos, allocatedSince(startBytes), squares);
+    }
+
+    /**
+     * Wraps an output so the time spent in it is recorded as the OUTPUT stage.
+     *
+     * @param output The output to measure.
+     * @return An output that passes everything on to the given one.
+     */
+    public StreamingAsciiOutput timed(StreamingAsciiOutput output) {
+        return new StreamingAsciiOutput() {
+            private long nanos;
+            private long bytes; // Negative once a call could not count its allocation
+            private long squares;
+
+            @Override
+            public void begin(int rows, int columns) {
+                long startNanos = System.nanoTime();
+                long startBytes = threadAllocatedBytes();
+                this.nanos = 0;
+                this.bytes = 0;
+                this.squares = 0;
+                output.begin(rows, columns);
+                this.nanos += System.nanoTime() - startNanos;
+                addBytes(allocatedSince(startBytes));
+            }
+
+            @Override
+            public void row(char[] row) {
+                long startNanos = System.nanoTime();
+                long startBytes = threadAllocatedBytes();
+                output.row(row);
+                this.nanos += System.nanoTime() - startNanos;
+                addBytes(allocatedSince(startBytes));
+                this.squares += row.length;
+            }
+
+            @Override
+            public void row(char[] row, int[] colors) {
+                long startNanos = System.nanoTime();
+                long startBytes = threadAllocatedBytes();
+                output.row(row, colors);
+                this.nanos += System.nanoTime() - startNanos;
+                addBytes(allocatedSince(startBytes));
+                this.squares += row.length;
+            }
+
+            @Override
+            public void end() {
+                long startNanos = System.nanoTime();
+                long startBytes = threadAllocatedBytes();
+                output.end();
+                this.nanos += System.nanoTime() - startNanos;
+                addBytes(allocatedSince(startBytes));
+                stages[Stage.OUTPUT.ordinal()].add(this.nanos, this.bytes, this.squares);
+            }
+
+            private void addBytes(long bytes) {
+                this.bytes = this.bytes < 0 || bytes < 0 ? -1 : this.bytes + bytes;
+            }
+        };
+    }
+
+    /**
+     * Writes the statistics of every stage to a CSV file: one line per stage, with its totals, its
+     * percentiles and the count of every histogram bucket up to the slowest one in use.
+     *
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void writeCsv(Path path) throws IOException {
+        int lastBucket = 0;
+        for (StageStats stats : this.stages) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (stats.histogram[bucket] > 0) {
+                    lastBucket = Math.max(lastBucket, bucket);
+                }
+            }
+        }
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            StringBuilder header = new StringBuilder(
+                    "stage,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,allocated_bytes,squares");
+            for (int bucket = 0; bucket <= lastBucket; bucket++) {
+                header.append(",le_").append(upperBoundOf(bucket)).append("_ns");
+            }
+            writer.println(header);
+            for (Stage stage : Stage.values()) {
+                StageStats stats = this.stages[stage.ordinal()];
+                StringBuilder line = new StringBuilder(stage.name().toLowerCase(Locale.ROOT));
+                line.append(',').append(stats.count);
+                appendMillis(line, stats.totalNanos);
+                appendMillis(line, stats.count == 0 ? 0 : stats.totalNanos / stats.count);
+                for (double percentile : PERCENTILES) {
+                    appendMillis(line, stats.percentileNanos(percentile));
+                }
+                appendMillis(line, stats.maxNanos);
+                // An allocation that could not be counted is left empty
+                line.append(',').append(stats.allocationUnknown ? "" : String.valueOf(stats.allocatedBytes))
+                        .append(',').append(stats.squares);
+                for (int bucket = 0; bucket <= lastBucket; bucket++) {
+                    line.append(',').append(stats.histogram[bucket]);
+                }
+                writer.println(line);
+            }
+        }
+    }
+
+    private static void appendMillis(StringBuilder line, long nanos) {
+        line.append(',').append(String.format(Locale.ROOT, "%.3f", nanos / NANOS_IN_MILLI));
+    }
+
+    /**
+     * Returns a table of the statistics of every stage that ran at least once.
+     *
+     * @return The table, one line per stage, followed by the decoding time per megapixel of the images.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder table = new StringBuilder(String.format(Locale.ROOT,
+                "%-10s %7s %10s %9s %9s %9s %9s %9s %11s %10s",
+                "stage", "count", "total ms", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "alloc MB", "squares"));
+        for (Stage stage : Stage.values()) {
+            StageStats stats = this.stages[stage.ordinal()];
+            if (stats.count == 0) {
+                continue;
+            }
+            table.append(System.lineSeparator()).append(String.format(Locale.ROOT,
+                    "%-10s %7d %10.2f %9.3f %9.3f %9.3f %9.3f %9.3f %11s %10d",
+                    stage.name().toLowerCase(Locale.ROOT), stats.count, stats.totalNanos / NANOS_IN_MILLI,
+                    stats.totalNanos / NANOS_IN_MILLI / stats.count,
+                    stats.percentileNanos(PERCENTILES[0]) / NANOS_IN_MILLI,
+                    stats.percentileNanos(PERCENTILES[1]) / NANOS_IN_MILLI,
+                    stats.percentileNanos(PERCENTILES[2]) / NANOS_IN_MILLI,
+                    stats.maxNanos / NANOS_IN_MILLI, stats.allocationUnknown ? UNKNOWN :
+                            String.format(Locale.ROOT, "%.2f", stats.allocatedBytes / BYTES_IN_MEGABYTE),
+                    stats.squares));
+        }
+        StageStats decode = this.stages[Stage.DECODE.ordinal()];
+        if (decode.squares > 0) {
+            table.append(System.lineSeparator()).append(String.format(Locale.ROOT, "decode: %.2f ms/MP",
+                    decode.totalNanos / NANOS_IN_MILLI / (decode.squares / PIXELS_IN_MEGAPIXEL)));
+        }
+        return table.toString();
+    }
+
+    private static int bucketOf(long nanos) {
+        return Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return bucket >= Long.SIZE - 2 ? Long.MAX_VALUE : (2L << bucket) - 1;
+    }
+
+    /**
+     * Returns the HotSpot extension of the thread bean, which counts the bytes allocated by every thread,
+     * or null if this JVM does not offer it.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationBean;
+    }
+}
@@ -3,11 +3,23 @@ package ascii_art;
 import ascii_output.AsciiOutput;
 import ascii_output.ConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
+import ascii_output.StreamingAsciiOutput;
+import image.FrameSequence;
 import image.Image;
+import image_char_matching.CharMatcherSnapshot;
+import image_char_matching.GlyphCache;
 import image_char_matching.SubImgCharMatcher;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.TreeSet;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Represents a shell for processing images.
@@ -37,6 +49,7 @@ public class Shell {
     private static final int FACTOR = 2;
     private static final int DOWN_RES = 0;
     private static final int UP_RES = 1;
+    private static final int MAX_RES_DIGITS = 9;
     private static final String FORMAT_ERROR ="Did not change resolution due to exceeding boundaries.";
     private static final String RES_ARG_ERROR = "Did not change resolution due to incorrect format.";
     private static final String IMAGE_COMMAND = "image";
@@ -49,29 +62,86 @@ public class Shell {
     private static final String OUTPUT_ERROR = "Did not change output method due to incorrect format.";
     private static final String OUTPUT_HTML = "html";
     private static final String OUTPUT_CONSOLE = "console";
+    private static final String OUTPUT_CONSOLE_FLUSH = "console flush";
+    private static final String OUTPUT_COLOR = "color";
+    private static final String OUTPUT_COLOR_AND_SPACE = "color ";
+    private static final int DEFAULT_COLOR_STEP = 16;
+    private static final int MAX_COLOR_STEP = 256;
     private static final String ASCII_ART_COMMAND = "asciiArt";
     private static final String FONT_NAME_HTML = "Courier New";
     private static final String FILE_OUTPUT_NAME = "out.html";
+    private static final String FRAME_FILE_OUTPUT_NAME = "out_%d.html";
     private static final String ASCII_ERROR = "Did not execute. Charset is empty.";
     private static final String INCORRECT_COMMAND = "Did not execute due to incorrect command.";
     private static final String CAT_PATH = "cat.jpeg";
+    private static final String PARALLEL_COMMAND = "parallel";
+    private static final String PARALLEL_AND_SPACE = "parallel ";
+    private static final String PARALLEL_ERROR = "Did not change parallelism due to incorrect format.";
+    private static final int MAX_PARALLELISM = 256;
+    private static final String CACHE_COMMAND = "cache";
+    private static final String STATS_COMMAND = "stats";
+    private static final String STATS_ON = "stats on";
+    private static final String STATS_OFF = "stats off";
+    private static final String STATS_RESET = "stats reset";
+    private static final String STATS_CSV_AND_SPACE = "stats csv ";
+    private static final String STATS_CSV_ERROR = "Did not write statistics due to problem with file.";
+    private static final String CROP_COMMAND = "crop";
+    private static final String CROP_AND_SPACE = "crop ";
+    private static final String CROP_OFF = "crop off";
+    private static final String CROP_ERROR = "Did not crop due to incorrect format.";
+    private static final String REGION_ERROR = "Did not change region due to exceeding boundaries.";
+    private static final String ZOOM_COMMAND = "zoom";
+    private static final String ZOOM_IN = "zoom in";
+    private static final String ZOOM_OUT = "zoom out";
+    private static final String PAN_COMMAND = "pan";
+    private static final String PAN_AND_SPACE = "pan ";
+    private static final String PAN_ERROR = "Did not pan due to incorrect format.";
+    private static final int REGION_ARGUMENTS = 4;
+    private static final int REGION_X = 0;
+    private static final int REGION_Y = 1;
+    private static final int REGION_WIDTH = 2;
+    private static final int REGION_HEIGHT = 3;
+    private static final String MATCH_COMMAND = "match";
+    private static final String MATCH_SHAPE = "match shape";
+    private static final String MATCH_BRIGHTNESS = "match brightness";
+    private static final String QUEUE_COMMAND = "queue";
+    private static final String QUEUE_AND_SPACE = "queue ";
+    private static final String QUEUE_ERROR = "Did not queue due to full queue.";
+    private static final int RENDER_CACHE_SIZE = 16;
+    private static final long MAX_CACHED_CHARS = 1024 * 1024;
     private final SubImgCharMatcher charMatcher;
-    private final TreeSet<Character> set;
+    private final BitSet set; // The characters of the charset, indexed by themselves
     private AsciiOutput output;
-    private Image image;
+    private boolean htmlOutput = false;
+    private int colorStep = 0; // The color quantization step of the HTML output, or 0 for no colors
+    private Image fullImage; // The image as loaded
+    private Image image; // The part of fullImage that is rendered
+    private int[] region; // The x, y, width and height of the rendered part, or null for the whole image
     private int minCharsInRow;
     private int resolution = 128;
+    private ForkJoinPool renderPool;
+    private final RenderCache renderCache = new RenderCache(RENDER_CACHE_SIZE);
+    private long imageVersion = 0;
+    private String animationPath; // The frames to render, or null for a still image
+    private final RenderStats renderStats = new RenderStats();
+    private boolean statsEnabled = false;
+    private final ImageLoader imageLoader = new ImageLoader();
+    // Images asked for and not installed yet, oldest first; installed when a command needs the image
+    private final Queue<Future<ImageLoader.LoadedImage>> pendingImages = new ArrayDeque<>();
+    // Without a terminal the output is probably read through a pipe, which should see it line by line
+    private final boolean flushEachLineByDefault = System.console() == null;
 
     /**
      * Constructs a new Shell instance.
      *
      */
     public Shell() {
-        this.output = new ConsoleAsciiOutput();
-        this.set = new TreeSet<>();
+        this.output = new ConsoleAsciiOutput(this.flushEachLineByDefault);
+        this.set = new BitSet();
         for (char c : START_CHARS)
-            this.set.add(c);
+            this.set.set(c);
         this.charMatcher = new SubImgCharMatcher(START_CHARS);
+        setParallelism(Runtime.getRuntime().availableProcessors());
     }
 
     /**
@@ -87,7 +157,14 @@ public class Shell {
         while (!command.equals(EXIT_COMMAND)){
             System.out.print(">>> ");
             command = KeyboardInput.readLine();
-            if (command.contains(CHARS_COMMAND)) {
+            // First, so a file name given to "stats csv" is not taken for another command
+            if (command.startsWith(STATS_COMMAND)) {
+                statsCommand(command);
+            }
+            else if (command.startsWith(QUEUE_COMMAND)) {
+                queueCommand(command);
+            }
+            else if (command.contains(CHARS_COMMAND)) {
                 charsCommand(command);
             }
             else if (command.contains(ADD_COMMAND)) {
@@ -105,6 +182,24 @@ public class Shell {
             else if (command.contains(OUTPUT_COMMAND)){
                 outputCommand(command);
             }
+            else if (command.contains(CACHE_COMMAND)){
+                cacheCommand(command);
+            }
+            else if (command.contains(PARALLEL_COMMAND)){
+                parallelCommand(command);
+            }
+            else if (command.contains(CROP_COMMAND)){
+                cropCommand(command);
+            }
+            else if (command.contains(ZOOM_COMMAND)){
+                zoomCommand(command);
+            }
+            else if (command.contains(PAN_COMMAND)){
+                panCommand(command);
+            }
+            else if (command.contains(MATCH_COMMAND)){
+                matchCommand(command);
+            }
             else if (command.contains(ASCII_ART_COMMAND)){
                 asciiArtCommand(command);
             }
@@ -113,21 +208,65 @@ public class Shell {
                 System.out.println(INCORRECT_COMMAND);
             }
         }
+        this.imageLoader.close();
+        GlyphCache.getInstance().saveQuietly();
     }
 
+    /**
+     * Starts loading the default image, so the prompt is shown while it is decoded.
+     */
     private boolean initialize() {
-        try {
-            this.image = new Image(CAT_PATH);
-        }
-        catch (IOException e){
+        if (!new File(CAT_PATH).isFile()) {
             System.out.println(IMAGE_ARG_ERROR);
             return false;
         }
-        this.image.resizeImage();
-        this.minCharsInRow = Math.max(1, image.getWidthNormal() / image.getHeightNormal());
+        this.pendingImages.add(this.imageLoader.load(CAT_PATH, null));
         return true;
     }
 
+    /**
+     * Waits for the images asked for so far and installs them in order, printing an error for every image
+     * that could not be loaded, which leaves the previous image in place.
+     *
+     * @return true if there is an image to work on.
+     */
+    private boolean awaitImage() {
+        boolean failed = false;
+        while (!this.pendingImages.isEmpty()) {
+            ImageLoader.LoadedImage loaded;
+            try {
+                loaded = this.pendingImages.remove().get();
+            }
+            catch (ExecutionException e) {
+                System.out.println(IMAGE_ARG_ERROR);
+                failed = true;
+                continue;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            installImage(loaded);
+        }
+        if (this.fullImage == null && !failed) {
+            System.out.println(IMAGE_ARG_ERROR);
+        }
+        return this.fullImage != null;
+    }
+
+    private void installImage(ImageLoader.LoadedImage loaded) {
+        // The first image sets the smallest resolution; a later one keeps it, as the image command did
+        if (this.fullImage == null) {
+            this.minCharsInRow = Math.max(1,
+                    loaded.getImage().getWidthNormal() / loaded.getImage().getHeightNormal());
+        }
+        this.fullImage = loaded.getImage();
+        this.image = loaded.getImage();
+        this.region = null;
+        this.animationPath = loaded.getAnimationPath();
+        this.imageVersion++;
+    }
+
     private void asciiArtCommand(String command) {
         if (!command.startsWith(ASCII_ART_COMMAND)){
             System.out.println(INCORRECT_COMMAND);
@@ -141,10 +280,164 @@ public class Shell {
             System.out.println(ASCII_ERROR);
             return;
         }
-        AsciiArtAlgorithm asciiArtAlgorithm = new AsciiArtAlgorithm(this.charMatcher, this.image,
-                this.resolution);
-        this.output.out(asciiArtAlgorithm.run());
+        if (!awaitImage()) {
+            return;
+        }
+        RenderStats stats = currentStats();
+        long startNanos = stats == null ? 0 : System.nanoTime();
+        long startBytes = stats == null ? 0 : RenderStats.threadAllocatedBytes();
+        if (this.animationPath != null) {
+            renderAnimation();
+        }
+        else {
+            render();
+        }
+        if (stats != null) {
+            stats.record(RenderStats.Stage.RENDER, startNanos, startBytes,
+                    (long) this.resolution * (this.image.getHeightNormal() /
+                            (this.image.getWidthNormal() / this.resolution)));
+        }
+
+    }
+
+    private RenderStats currentStats() {
+        return this.statsEnabled ? this.renderStats : null;
+    }
+
+    private void statsCommand(String command) {
+        if (command.equals(STATS_COMMAND)) {
+            if (!this.statsEnabled) {
+                System.out.println("Statistics are off. Use \"stats on\" to collect them.");
+            }
+            System.out.println(this.renderStats);
+        }
+        else if (command.equals(STATS_ON)) {
+            this.statsEnabled = true;
+        }
+        else if (command.equals(STATS_OFF)) {
+            this.statsEnabled = false;
+        }
+        else if (command.equals(STATS_RESET)) {
+            this.renderStats.reset();
+        }
+        else if (command.startsWith(STATS_CSV_AND_SPACE) && command.length() > STATS_CSV_AND_SPACE.length()) {
+            try {
+                this.renderStats.writeCsv(Paths.get(command.substring(STATS_CSV_AND_SPACE.length())));
+            }
+            catch (IOException | InvalidPathException e) {
+                System.out.println(STATS_CSV_ERROR);
+            }
+        }
+        else {
+            System.out.println(INCORRECT_COMMAND);
+        }
+    }
+
+    private void renderAnimation() {
+        AnimationRenderer renderer = new AnimationRenderer(this.charMatcher, this.resolution,
+                this.renderPool);
+        try (FrameSequence frames = new FrameSequence(this.animationPath)) {
+            int index = 0;
+            for (Image frame = frames.nextFrame(); frame != null; frame = frames.nextFrame()) {
+                if (this.region != null) {
+                    frame = frame.crop(this.region[REGION_X], this.region[REGION_Y],
+                            this.region[REGION_WIDTH], this.region[REGION_HEIGHT]);
+                }
+                char[][] chars = renderer.render(frame);
+                if (this.htmlOutput) {
+                    String fileName = String.format(FRAME_FILE_OUTPUT_NAME, index);
+                    new HtmlAsciiOutput(fileName, FONT_NAME_HTML).out(chars);
+                }
+                else {
+                    this.output.out(chars);
+                    System.out.println();
+                }
+                index++;
+            }
+        }
+        catch (IOException e) {
+            System.out.println(IMAGE_ARG_ERROR);
+            return;
+        }
+        System.out.println(renderer);
+    }
+
+    private void render() {
+        // The version in the cache key is the version of the charset the render matches against
+        CharMatcherSnapshot snapshot = this.charMatcher.snapshot();
+        long charsetVersion = snapshot.getVersion();
+        // The cache holds no colors, so a colored render always calculates the squares again
+        boolean withColors = this.colorStep > 0;
+        char[][] chars = withColors ? null :
+                this.renderCache.getResult(this.imageVersion, this.resolution, charsetVersion);
+        RenderStats stats = currentStats();
+        if (chars != null) {
+            long startNanos = stats == null ? 0 : System.nanoTime();
+            long startBytes = stats == null ? 0 : RenderStats.threadAllocatedBytes();
+            this.output.out(chars);
+            if (stats != null) {
+                stats.record(RenderStats.Stage.OUTPUT, startNanos, startBytes,
+                        (long) chars.length * chars[0].length);
+            }
+            return;
+        }
+        double[][] brightness = withColors ? null :
+                this.renderCache.getBrightness(this.imageVersion, this.resolution);
+        AsciiArtAlgorithm asciiArtAlgorithm = new AsciiArtAlgorithm(snapshot, this.image,
+                this.resolution, this.renderPool);
+        asciiArtAlgorithm.setStats(stats);
+        asciiArtAlgorithm.setColors(withColors);
+        StreamingAsciiOutput streamingOutput = StreamingAsciiOutput.of(this.output);
+        if (stats != null) {
+            streamingOutput = stats.timed(streamingOutput);
+        }
+        // The rows are output as they are matched, and recorded for the cache on the way unless the frame
+        // is too large for a copy of it to be worth keeping
+        RecordingAsciiOutput recorder = new RecordingAsciiOutput(streamingOutput, MAX_CACHED_CHARS);
+        asciiArtAlgorithm.run(brightness, recorder);
+        if (brightness == null) {
+            this.renderCache.putBrightness(this.imageVersion, this.resolution,
+                    this.image.getBrightnessArray());
+        }
+        char[][] recorded = recorder.getChars();
+        if (recorded != null) {
+            this.renderCache.putResult(this.imageVersion, this.resolution, charsetVersion, recorded);
+        }
+    }
+
+    private void cacheCommand(String command) {
+        if (!command.equals(CACHE_COMMAND)){
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        System.out.println(this.renderCache);
+    }
+
+    private void parallelCommand(String command) {
+        if (!command.startsWith(PARALLEL_AND_SPACE)){
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        String argument = command.substring(PARALLEL_AND_SPACE.length());
+        if (!isNumber(argument)){
+            System.out.println(PARALLEL_ERROR);
+            return;
+        }
+        int parallelism = Integer.parseInt(argument);
+        if (parallelism < 1 || parallelism > MAX_PARALLELISM){
+            System.out.println(PARALLEL_ERROR);
+            return;
+        }
+        setParallelism(parallelism);
+        System.out.println("Parallelism set to " + parallelism + ".");
+    }
 
+    private void setParallelism(int parallelism) {
+        if (this.renderPool != null) {
+            this.renderPool.shutdown();
+        }
+        // A single thread renders on the shell's own thread, without a pool
+        this.renderPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
     }
 
     private void outputCommand(String command) {
@@ -157,7 +450,12 @@ public class Shell {
             return;
         }
         String renderer = command.substring(OUTPUT_AND_SPACE.length());
-        if (!renderer.equals(OUTPUT_HTML) && !renderer.equals(OUTPUT_CONSOLE)){
+        if (renderer.equals(OUTPUT_COLOR) || renderer.startsWith(OUTPUT_COLOR_AND_SPACE)){
+            colorOutputCommand(renderer);
+            return;
+        }
+        if (!renderer.equals(OUTPUT_HTML) && !renderer.equals(OUTPUT_CONSOLE) &&
+                !renderer.equals(OUTPUT_CONSOLE_FLUSH)){
             System.out.println(OUTPUT_ERROR);
             return;
         }
@@ -165,8 +463,30 @@ public class Shell {
             this.output = new HtmlAsciiOutput(FILE_OUTPUT_NAME, FONT_NAME_HTML);
         }
         else {
-            this.output = new ConsoleAsciiOutput();
+            this.output = new ConsoleAsciiOutput(
+                    this.flushEachLineByDefault || renderer.equals(OUTPUT_CONSOLE_FLUSH));
+        }
+        this.htmlOutput = renderer.equals(OUTPUT_HTML);
+        this.colorStep = 0;
+    }
+
+    private void colorOutputCommand(String renderer) {
+        int step = DEFAULT_COLOR_STEP;
+        if (!renderer.equals(OUTPUT_COLOR)){
+            String argument = renderer.substring(OUTPUT_COLOR_AND_SPACE.length());
+            if (!isNumber(argument)){
+                System.out.println(OUTPUT_ERROR);
+                return;
+            }
+            step = Integer.parseInt(argument);
+            if (step < 1 || step > MAX_COLOR_STEP){
+                System.out.println(OUTPUT_ERROR);
+                return;
+            }
         }
+        this.output = new HtmlAsciiOutput(FILE_OUTPUT_NAME, FONT_NAME_HTML, false, step);
+        this.htmlOutput = true;
+        this.colorStep = step;
     }
 
     private void imageCommand(String command) {
@@ -179,15 +499,204 @@ public class Shell {
             return;
         }
         String pathImage = command.substring(IMAGE_COMMAND_AND_SPACE.length());
-        try{
-            this.image = new Image(pathImage);
-            this.image.resizeImage();
-        } catch (IOException e) {
+        // A missing file is reported at once; a file that cannot be decoded, when the image is needed
+        if (!new File(pathImage).exists()) {
+            System.out.println(IMAGE_ARG_ERROR);
+            return;
+        }
+        this.pendingImages.add(this.imageLoader.load(pathImage, currentStats()));
+    }
+
+    private void queueCommand(String command) {
+        if (command.equals(QUEUE_COMMAND)) {
+            System.out.println(this.imageLoader.queuedCount() + " images queued.");
+            return;
+        }
+        if (!command.startsWith(QUEUE_AND_SPACE) || command.length() == QUEUE_AND_SPACE.length()){
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        String pathImage = command.substring(QUEUE_AND_SPACE.length());
+        if (!new File(pathImage).exists()) {
             System.out.println(IMAGE_ARG_ERROR);
+            return;
+        }
+        if (!this.imageLoader.queue(pathImage, currentStats())) {
+            System.out.println(QUEUE_ERROR);
         }
     }
 
+    private void matchCommand(String command) {
+        if (command.equals(MATCH_SHAPE)) {
+            this.charMatcher.setShapeMatching(true);
+        }
+        else if (command.equals(MATCH_BRIGHTNESS)) {
+            this.charMatcher.setShapeMatching(false);
+        }
+        else {
+            System.out.println(INCORRECT_COMMAND);
+        }
+    }
+
+    private void cropCommand(String command) {
+        if (!awaitImage()) {
+            return;
+        }
+        if (command.equals(CROP_COMMAND)) {
+            printRegion();
+            return;
+        }
+        if (command.equals(CROP_OFF)) {
+            setRegion(null);
+            return;
+        }
+        if (!command.startsWith(CROP_AND_SPACE)){
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        String[] arguments = command.substring(CROP_AND_SPACE.length()).split(SPACE_STRING);
+        if (arguments.length != REGION_ARGUMENTS){
+            System.out.println(CROP_ERROR);
+            return;
+        }
+        int[] newRegion = new int[REGION_ARGUMENTS];
+        for (int i = 0; i < REGION_ARGUMENTS; i++) {
+            if (!isNumber(arguments[i])){
+                System.out.println(CROP_ERROR);
+                return;
+            }
+            newRegion[i] = Integer.parseInt(arguments[i]);
+        }
+        if (!this.fullImage.isValidRegion(newRegion[REGION_X], newRegion[REGION_Y],
+                newRegion[REGION_WIDTH], newRegion[REGION_HEIGHT])){
+            System.out.println(REGION_ERROR);
+            return;
+        }
+        setRegion(newRegion);
+    }
+
+    private void zoomCommand(String command) {
+        if (!awaitImage()) {
+            return;
+        }
+        int[] current = currentRegion();
+        int width;
+        int height;
+        if (command.equals(ZOOM_IN)) {
+            width = Math.max(1, current[REGION_WIDTH] / FACTOR);
+            height = Math.max(1, current[REGION_HEIGHT] / FACTOR);
+        }
+        else if (command.equals(ZOOM_OUT)) {
+            width = Math.min(this.fullImage.getWidth(), current[REGION_WIDTH] * FACTOR);
+            height = Math.min(this.fullImage.getHeight(), current[REGION_HEIGHT] * FACTOR);
+        }
+        else {
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        if (width == current[REGION_WIDTH] && height == current[REGION_HEIGHT]) {
+            System.out.println(REGION_ERROR);
+            return;
+        }
+        // The center of the region stays in place, unless that would leave the image
+        int x = clamp(current[REGION_X] + (current[REGION_WIDTH] - width) / 2,
+                this.fullImage.getWidth() - width);
+        int y = clamp(current[REGION_Y] + (current[REGION_HEIGHT] - height) / 2,
+                this.fullImage.getHeight() - height);
+        setRegion(new int[]{x, y, width, height});
+    }
+
+    private void panCommand(String command) {
+        if (!awaitImage()) {
+            return;
+        }
+        if (!command.startsWith(PAN_AND_SPACE)){
+            System.out.println(INCORRECT_COMMAND);
+            return;
+        }
+        int[] current = currentRegion();
+        // Every step moves the region by half of its size
+        int x = current[REGION_X];
+        int y = current[REGION_Y];
+        switch (command.substring(PAN_AND_SPACE.length())) {
+            case "left":
+                x -= Math.max(1, current[REGION_WIDTH] / FACTOR);
+                break;
+            case "right":
+                x += Math.max(1, current[REGION_WIDTH] / FACTOR);
+                break;
+            case "up":
+                y -= Math.max(1, current[REGION_HEIGHT] / FACTOR);
+                break;
+            case "down":
+                y += Math.max(1, current[REGION_HEIGHT] / FACTOR);
+                break;
+            default:
+                System.out.println(PAN_ERROR);
+                return;
+        }
+        x = clamp(x, this.fullImage.getWidth() - current[REGION_WIDTH]);
+        y = clamp(y, this.fullImage.getHeight() - current[REGION_HEIGHT]);
+        if (x == current[REGION_X] && y == current[REGION_Y]) {
+            System.out.println(REGION_ERROR);
+            return;
+        }
+        setRegion(new int[]{x, y, current[REGION_WIDTH], current[REGION_HEIGHT]});
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    private int[] currentRegion() {
+        if (this.region != null) {
+            return this.region;
+        }
+        return new int[]{0, 0, this.fullImage.getWidth(), this.fullImage.getHeight()};
+    }
+
+    /**
+     * Renders only a region of the loaded image from now on. Only the pixels of the region are copied and
+     * only its squares are calculated, so a small region of a large image is fast to render. The resolution
+     * is brought within the limits of the region if needed.
+     *
+     * @param newRegion The x, y, width and height of the region, or null for the whole image.
+     */
+    private void setRegion(int[] newRegion) {
+        if (newRegion != null && newRegion[REGION_X] == 0 && newRegion[REGION_Y] == 0 &&
+                newRegion[REGION_WIDTH] == this.fullImage.getWidth() &&
+                newRegion[REGION_HEIGHT] == this.fullImage.getHeight()) {
+            newRegion = null;
+        }
+        this.region = newRegion;
+        if (newRegion == null) {
+            this.image = this.fullImage;
+        }
+        else {
+            this.image = this.fullImage.crop(newRegion[REGION_X], newRegion[REGION_Y],
+                    newRegion[REGION_WIDTH], newRegion[REGION_HEIGHT]);
+            this.image.resizeImage();
+        }
+        this.imageVersion++;
+        printRegion();
+        this.minCharsInRow = Math.max(1, this.image.getWidthNormal() / this.image.getHeightNormal());
+        int fitted = Math.max(this.minCharsInRow, Math.min(this.resolution, this.image.getWidthNormal()));
+        if (fitted != this.resolution) {
+            this.resolution = fitted;
+            System.out.println("Resolution set to " + this.resolution + ".");
+        }
+    }
+
+    private void printRegion() {
+        int[] current = currentRegion();
+        System.out.println("Region is " + current[REGION_WIDTH] + "x" + current[REGION_HEIGHT] + " at (" +
+                current[REGION_X] + ", " + current[REGION_Y] + ").");
+    }
+
     private void resCommand(String command) {
+        if (!awaitImage()) {
+            return;
+        }
         if (!command.startsWith(RES_AND_SPACE)){
             System.out.println(INCORRECT_COMMAND);
             return;
@@ -203,12 +712,37 @@ public class Shell {
         else if (resArgument.equals("down")) {
             handelDown();
         }
+        else if (isNumber(resArgument)) {
+            handelSet(Integer.parseInt(resArgument));
+        }
         else {
             System.out.println(RES_ARG_ERROR);
         }
 
     }
 
+    private boolean isNumber(String argument) {
+        if (argument.isEmpty() || argument.length() > MAX_RES_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < argument.length(); i++) {
+            if (!Character.isDigit(argument.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void handelSet(int newResolution) {
+        if (newResolution >= this.minCharsInRow && this.image.isValidResolution(newResolution)) {
+            this.resolution = newResolution;
+            System.out.println("Resolution set to " + this.resolution + ".");
+        }
+        else {
+            System.out.println(FORMAT_ERROR);
+        }
+    }
+
     private void handelDown() {
         if (checkCorrect(DOWN_RES)){
             this.resolution /= FACTOR;
@@ -238,13 +772,15 @@ public class Shell {
     }
 
     private void addToList(char c){
-        if (this.set.add(c)) {
+        if (!this.set.get(c)) {
+            this.set.set(c);
             this.charMatcher.addChar(c);
         }
     }
 
     private void removeFromList(char c){
-        if (this.set.remove(c)) {
+        if (this.set.get(c)) {
+            this.set.clear(c);
             this.charMatcher.removeChar(c);
         }
     }
@@ -264,8 +800,11 @@ public class Shell {
         else {
             argument = command.substring(REMOVE_AND_SPACE.length());
         }
+        char[] unicodeChars = CharRanges.parse(argument);
         if (argument.equals(ALL)) {
             allOperation(operator);
+        } else if (unicodeChars != null) {
+            addOrRemoveChars(unicodeChars, operator);
         } else if (argument.equals(SPACE_WORD)) {
             addOrRemove(SPACE_CHAR, operator);
         } else if (argument.length() == 1) {
@@ -281,15 +820,45 @@ public class Shell {
 
     private void allOperation(String operator) {
         if (operator.equals(ADD_COMMAND)) {
-            for (int i = FIRST_ASCII_CHAR; i <= SPACE_ASCII_CHAR; i++) {
-                addOrRemove((char) i, operator);
-            }
+            addOrRemoveRange((char) FIRST_ASCII_CHAR, (char) SPACE_ASCII_CHAR, operator);
         }
         else {
-            TreeSet<Character> copy = new TreeSet<>(this.set);
-            for (char c: copy){
-                addOrRemove(c, operator);
+            char[] chars = new char[this.set.cardinality()];
+            int i = 0;
+            for (int c = this.set.nextSetBit(0); c >= 0; c = this.set.nextSetBit(c + 1)){
+                chars[i++] = (char) c;
             }
+            this.set.clear();
+            this.charMatcher.removeChars(chars);
+        }
+    }
+
+    private void addOrRemoveRange(char first, char last, String operator) {
+        char[] chars = new char[last - first + 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (first + i);
+        }
+        addOrRemoveChars(chars, operator);
+    }
+
+    /**
+     * Adds or removes many characters at once, handing only the ones that actually change the charset to
+     * the matcher in a single batch, so whole Unicode blocks can be added or removed interactively.
+     */
+    private void addOrRemoveChars(char[] chars, String operator) {
+        boolean add = operator.equals(ADD_COMMAND);
+        StringBuilder changed = new StringBuilder();
+        for (char c : chars) {
+            if (this.set.get(c) != add) {
+                this.set.set(c, add);
+                changed.append(c);
+            }
+        }
+        if (add) {
+            this.charMatcher.addChars(changed.toString().toCharArray());
+        }
+        else {
+            this.charMatcher.removeChars(changed.toString().toCharArray());
         }
     }
 
@@ -334,14 +903,10 @@ public class Shell {
         char firstChar = addArgument.charAt(FIRST_CHAR_POSITION);
         char secondChar = addArgument.charAt(SECOND_CHAR_POSITION);
         if (firstChar < secondChar){
-            for (int i = firstChar; i <= secondChar; i++){
-                addOrRemove((char) i, operator);
-            }
+            addOrRemoveRange(firstChar, secondChar, operator);
         }
         else {
-            for (int i = secondChar; i <= firstChar; i++){
-                addOrRemove((char) i, operator);
-            }
+            addOrRemoveRange(secondChar, firstChar, operator);
         }
     }
 
@@ -350,10 +915,11 @@ public class Shell {
             System.out.println(INCORRECT_COMMAND);
             return;
         }
-        for (char c : this.set) {
-            System.out.print(c + SPACE_STRING);
+        StringBuilder chars = new StringBuilder(2 * this.set.cardinality());
+        for (int c = this.set.nextSetBit(0); c >= 0; c = this.set.nextSetBit(c + 1)) {
+            chars.append((char) c).append(SPACE_STRING);
         }
-        System.out.println();
+        System.out.println(chars);
     }
 
     /**
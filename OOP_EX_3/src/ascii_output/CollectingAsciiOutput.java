@@ -0,0 +1,32 @@
+package ascii_output;
+
+/**
+ * Adapts an AsciiOutput that needs the whole frame to the streaming
+ * contract, by collecting the rows until the frame ends.
+ */
+class CollectingAsciiOutput implements StreamingAsciiOutput {
+    private final AsciiOutput output;
+    private char[][] chars;
+    private int nextRow;
+
+    CollectingAsciiOutput(AsciiOutput output) {
+        this.output = output;
+    }
+
+    @Override
+    public void begin(int rows, int columns) {
+        chars = new char[rows][];
+        nextRow = 0;
+    }
+
+    @Override
+    public void row(char[] row) {
+        chars[nextRow++] = row.clone();
+    }
+
+    @Override
+    public void end() {
+        output.out(chars);
+        chars = null;
+    }
+}
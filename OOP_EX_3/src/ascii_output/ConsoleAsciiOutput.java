@@ -1,16 +1,162 @@
 package ascii_output;
 
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
 /**
  * Output a 2D array of chars to the console.
+ * The whole frame, separating spaces and line breaks included, is assembled in a reusable buffer, encoded
+ * in the charset of System.out and handed to System.out in a single write, which is large enough to go
+ * straight to the standard output file descriptor. Optionally every line is written and flushed as soon
+ * as it is assembled instead, so a program reading the output through a pipe sees it line by line.
+ * When the rows are streamed, they are written whenever the buffer fills up, so the output starts before
+ * the last row is ready.
+ * The same text can be written to any other PrintStream instead, in that stream's charset.
+ * An instance reuses its buffers from one call to the next, so it must not be shared between threads.
  * @author Dan Nirel
- */public class ConsoleAsciiOutput implements AsciiOutput{
+ */public class ConsoleAsciiOutput implements AsciiOutput, StreamingAsciiOutput {
+    private static final char SEPARATOR = ' ';
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+
+    private final boolean flushEachLine;
+    private final PrintStream stream; // null for System.out, as it is when a frame is written
+    private CharBuffer charBuffer = CharBuffer.allocate(0);
+    private ByteBuffer byteBuffer = ByteBuffer.allocate(0);
+    private CharsetEncoder encoder;
+
+    /**
+     * Constructs an output that writes every frame at once.
+     */
+    public ConsoleAsciiOutput() {
+        this(false);
+    }
+
+    /**
+     * Constructs an output to the console.
+     *
+     * @param flushEachLine true to write and flush every line on its own, false to write the whole frame
+     *                      at once.
+     */
+    public ConsoleAsciiOutput(boolean flushEachLine) {
+        this(null, flushEachLine);
+    }
+
+    /**
+     * Constructs an output that writes the same text as the console output to another stream.
+     *
+     * @param stream        The stream to write to, or null for System.out.
+     * @param flushEachLine true to write and flush every line on its own, false to write the whole frame
+     *                      at once.
+     */
+    public ConsoleAsciiOutput(PrintStream stream, boolean flushEachLine) {
+        this.stream = stream;
+        this.flushEachLine = flushEachLine;
+    }
+
     @Override
     public void out(char[][] chars) {
-        for (int y = 0; y < chars.length ; y++) {
-            for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
-            }
-            System.out.println();
+        int frameLength = 0;
+        for (char[] row : chars) {
+            frameLength += rowLength(row.length);
+        }
+        // Room for the whole frame, so it is written at once
+        prepare(frameLength);
+        for (char[] row : chars) {
+            row(row);
+        }
+        end();
+    }
+
+    @Override
+    public void begin(int rows, int columns) {
+        prepare((int) Math.min((long) rows * rowLength(columns), STREAM_BUFFER_SIZE));
+    }
+
+    @Override
+    public void row(char[] row) {
+        if (charBuffer.remaining() < rowLength(row.length)) {
+            writeBuffered();
+            charBuffer = ensureCapacity(charBuffer, rowLength(row.length));
+        }
+        appendRow(row);
+        if (flushEachLine) {
+            write();
+        }
+    }
+
+    @Override
+    public void end() {
+        writeBuffered();
+    }
+
+    private void writeBuffered() {
+        if (charBuffer.position() > 0) {
+            write();
+        }
+    }
+
+    /**
+     * Prepares the encoder and an empty buffer for a frame.
+     *
+     * @param capacity The number of characters the buffer should hold before it is written.
+     */
+    private void prepare(int capacity) {
+        PrintStream out = out();
+        if (encoder == null || !encoder.charset().equals(out.charset())) {
+            // Characters that cannot be encoded are replaced, as the stream itself does
+            encoder = out.charset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        charBuffer = ensureCapacity(charBuffer, flushEachLine ? 0 : capacity);
+    }
+
+    private static int rowLength(int columns) {
+        return columns * 2 + LINE_SEPARATOR.length;
+    }
+
+    private void appendRow(char[] row) {
+        for (char c : row) {
+            charBuffer.put(c);
+            charBuffer.put(SEPARATOR);
+        }
+        charBuffer.put(LINE_SEPARATOR);
+    }
+
+    private PrintStream out() {
+        return stream == null ? System.out : stream;
+    }
+
+    /**
+     * Encodes the buffered characters, writes them to the stream in a single call and flushes it, then
+     * empties the buffer.
+     */
+    private void write() {
+        charBuffer.flip();
+        int maxBytes = (int) Math.ceil(charBuffer.remaining() * (double) encoder.maxBytesPerChar());
+        if (byteBuffer.capacity() < maxBytes) {
+            byteBuffer = ByteBuffer.allocate(maxBytes);
+        }
+        byteBuffer.clear();
+        encoder.reset();
+        encoder.encode(charBuffer, byteBuffer, true);
+        encoder.flush(byteBuffer);
+        // Anything printed before, like a prompt, is still ahead of the frame in the stream's own buffer
+        PrintStream out = out();
+        out.write(byteBuffer.array(), 0, byteBuffer.position());
+        out.flush();
+        charBuffer.clear();
+    }
+
+    private static CharBuffer ensureCapacity(CharBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) {
+            buffer.clear();
+            return buffer;
         }
+        return CharBuffer.allocate(capacity);
     }
 }
@@ -1,32 +1,146 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * The characters are escaped through a table and copied into a reusable buffer, which is encoded in the
+ * platform's default charset, which the page declares, and written through a FileChannel in large blocks,
+ * so no object is allocated per character. An instance reuses its buffers from one call to the next, so it
+ * must not be shared between threads. When the rows are streamed, the file is opened by begin and the rows
+ * are written out whenever the buffer fills up. The same HTML can be written to a stream instead of a file;
+ * the stream is flushed but not closed at the end of every frame.
+ * In color mode, every character is shown in the average color of its square. The colors are quantized,
+ * and a run of characters of the same quantized color is wrapped in a single span, so a coarser
+ * quantization gives a smaller file that the browser lays out faster. Spaces take no color and never
+ * break a run.
  * @author Dan Nirel
  */
-public class HtmlAsciiOutput implements AsciiOutput {
+public class HtmlAsciiOutput implements AsciiOutput, StreamingAsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final int CHAR_BUFFER_SIZE = 1 << 16;
+    private static final int BYTE_BUFFER_SIZE = 1 << 18;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+    private static final char[][] ESCAPES = new char[128][]; // null for characters written as they are
+    // The longest sequence appended at once, so a single check before it is enough
+    private static final int MAX_APPEND = 8;
+    private static final char[] SPAN_OPEN = "<span style=\"color:#".toCharArray();
+    private static final char[] SPAN_OPEN_END = "\">".toCharArray();
+    private static final char[] SPAN_CLOSE = "</span>".toCharArray();
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HEX_COLOR_DIGITS = 6;
+    // Closing a span, opening the next one and appending an escaped character, with a single check before
+    private static final int MAX_COLOR_APPEND = SPAN_CLOSE.length + SPAN_OPEN.length + HEX_COLOR_DIGITS +
+            SPAN_OPEN_END.length + MAX_APPEND;
+    private static final int MAX_CHANNEL_VALUE = 255;
+    private static final int NO_COLOR = -1;
+
+    static {
+        ESCAPES['<'] = "&lt;".toCharArray();
+        ESCAPES['>'] = "&gt;".toCharArray();
+        ESCAPES['&'] = "&amp;".toCharArray();
+    }
 
     private final String fontName;
-    private final String filename;
+    private final String filename; // null when writing to a stream
+    private final OutputStream stream; // null when writing to a file
+    private final boolean atomic;
+    private final int colorStep; // The quantization step of every color channel, or 0 for no colors
+    private CharBuffer charBuffer;
+    private ByteBuffer byteBuffer;
+    private CharsetEncoder encoder;
+    private WritableByteChannel channel; // Open between begin and end, unless writing failed
+    private boolean failed = false; // Whether writing the current or last frame failed
 
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, false);
+    }
+
+    /**
+     * Constructs an output to an HTML file.
+     *
+     * @param filename The file to write.
+     * @param fontName The font to show the characters in.
+     * @param atomic   true to write to a temporary file first and move it over the file once it is
+     *                 complete, so a reader never sees a partial file.
+     */
+    public HtmlAsciiOutput(String filename, String fontName, boolean atomic) {
+        this(filename, fontName, atomic, 0);
+    }
+
+    /**
+     * Constructs an output to an HTML file that can show the characters in color.
+     *
+     * @param filename  The file to write.
+     * @param fontName  The font to show the characters in.
+     * @param atomic    true to write to a temporary file first; see above.
+     * @param colorStep 0 to write black characters, or the step every color channel is quantized to,
+     *                  from 1 for the exact colors up to 256. Neighbouring characters whose colors
+     *                  quantize to the same value share a span.
+     */
+    public HtmlAsciiOutput(String filename, String fontName, boolean atomic, int colorStep) {
         this.fontName = fontName;
         this.filename = filename;
+        this.stream = null;
+        this.atomic = atomic;
+        this.colorStep = colorStep;
+    }
+
+    /**
+     * Constructs an output that writes the HTML to a stream, such as the body of a response.
+     *
+     * @param stream    The stream to write to. It is flushed at the end of every frame, and left open.
+     * @param fontName  The font to show the characters in.
+     * @param colorStep 0 to write black characters, or the quantization step of the colors; see above.
+     */
+    public HtmlAsciiOutput(OutputStream stream, String fontName, int colorStep) {
+        this.fontName = fontName;
+        this.filename = null;
+        this.stream = stream;
+        this.atomic = false;
+        this.colorStep = colorStep;
     }
 
     @Override
     public void out(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write(String.format(
+        begin(chars.length, chars[0].length);
+        for(int y = 0 ; y < chars.length ; y++) {
+            row(chars[y]);
+        }
+        end();
+    }
+
+    @Override
+    public void begin(int rows, int columns) {
+        closeQuietly();
+        failed = false;
+        try {
+            channel = stream != null ? Channels.newChannel(stream) :
+                    FileChannel.open(writePath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+            prepareBuffers();
+            append(String.format(
                 "<!DOCTYPE html>\n"+
                 "<html>\n"+
+                "<head><meta charset=\"%s\"></head>\n"+
                 "<body style=\""+
                     "\tCOLOR:#000000;"+
                     "\tTEXT-ALIGN:center;"+
@@ -37,27 +151,224 @@ public class HtmlAsciiOutput implements AsciiOutput {
                     "\tFONT-SIZE:%frem;"+
                     "\tLETTER-SPACING:0.15em;"+
                     "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
+                    encoder.charset().name(), fontName, BASE_FONT_SIZE/columns, BASE_LINE_SPACING));
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void row(char[] row) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            for (int x = 0; x < row.length ; x++) {
+                if (charBuffer.remaining() < MAX_APPEND) {
+                    flush(false);
+                }
+                appendEscaped(row[x]);
+            }
+            if (charBuffer.remaining() < MAX_APPEND) {
+                flush(false);
+            }
+            charBuffer.put(LINE_SEPARATOR);
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void row(char[] row, int[] colors) {
+        if (colorStep == 0) {
+            row(row);
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            int spanColor = NO_COLOR;
+            for (int x = 0; x < row.length ; x++) {
+                if (charBuffer.remaining() < MAX_COLOR_APPEND) {
+                    flush(false);
+                }
+                char c = row[x];
+                if (c != ' ') {
+                    int color = quantize(colors[x]);
+                    if (color != spanColor) {
+                        if (spanColor != NO_COLOR) {
+                            charBuffer.put(SPAN_CLOSE);
+                        }
+                        appendSpanOpen(color);
+                        spanColor = color;
                     }
-                    writer.write(htmlRep);
                 }
-                writer.newLine();
+                appendEscaped(c);
+            }
+            if (charBuffer.remaining() < MAX_COLOR_APPEND) {
+                flush(false);
+            }
+            if (spanColor != NO_COLOR) {
+                charBuffer.put(SPAN_CLOSE);
             }
-            writer.write(
+            charBuffer.put(LINE_SEPARATOR);
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    private void appendEscaped(char c) {
+        char[] htmlRep = c < ESCAPES.length ? ESCAPES[c] : null;
+        if (htmlRep == null) {
+            charBuffer.put(c);
+        }
+        else {
+            charBuffer.put(htmlRep);
+        }
+    }
+
+    private void appendSpanOpen(int color) {
+        charBuffer.put(SPAN_OPEN);
+        for (int shift = (HEX_COLOR_DIGITS - 1) * 4; shift >= 0; shift -= 4) {
+            charBuffer.put(HEX_DIGITS[(color >> shift) & 0xF]);
+        }
+        charBuffer.put(SPAN_OPEN_END);
+    }
+
+    /**
+     * Moves every channel of a color to the middle of its quantization step.
+     */
+    private int quantize(int color) {
+        return quantizeChannel((color >> 16) & 0xFF) << 16 | quantizeChannel((color >> 8) & 0xFF) << 8 |
+                quantizeChannel(color & 0xFF);
+    }
+
+    private int quantizeChannel(int value) {
+        return Math.min(MAX_CHANNEL_VALUE, value / colorStep * colorStep + colorStep / 2);
+    }
+
+    @Override
+    public void end() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            append(
                 "</p>\n"+
                 "</body>\n"+
                 "</html>\n");
+            flush(true);
+            if (stream != null) {
+                stream.flush();
+                channel = null;
+                return;
+            }
+            channel.close();
+            channel = null;
+            if (atomic) {
+                Files.move(writePath(), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
         } catch(IOException e) {
-            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+            fail();
+        }
+    }
+
+    private Path writePath() {
+        return Paths.get(atomic ? filename + TEMP_SUFFIX : filename);
+    }
+
+    /**
+     * Returns whether writing the current frame, or the last one once it has ended, failed. A failure is
+     * logged and the rest of the frame is skipped, so this is how a caller learns that the file is
+     * incomplete or missing.
+     *
+     * @return true if a write failed since the frame began.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Reports a failed write and gives up on the rest of the frame.
+     */
+    private void fail() {
+        failed = true;
+        Logger.getGlobal().severe(filename == null ? "Failed to write to the stream" :
+                String.format("Failed to write to \"%s\"", filename));
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (channel == null || stream != null) {
+            channel = null;
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with this file
+        }
+        channel = null;
+    }
+
+    /**
+     * Allocates the buffers on first use and empties them. Characters that cannot be encoded are replaced,
+     * as a Writer would do.
+     */
+    private void prepareBuffers() {
+        if (charBuffer == null) {
+            charBuffer = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+            byteBuffer = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+            encoder = Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        charBuffer.clear();
+        byteBuffer.clear();
+        encoder.reset();
+    }
+
+    private void append(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!charBuffer.hasRemaining()) {
+                flush(false);
+            }
+            charBuffer.put(text.charAt(i));
+        }
+    }
+
+    /**
+     * Encodes the buffered characters and writes the bytes to the channel. A surrogate pair that is cut by
+     * the end of the buffer stays in it until the rest of the pair arrives.
+     *
+     * @param endOfInput true for the last call, which also writes whatever the encoder still holds.
+     * @throws IOException If the channel cannot be written.
+     */
+    private void flush(boolean endOfInput) throws IOException {
+        charBuffer.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(charBuffer, byteBuffer, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+            }
+        } while (result.isOverflow());
+        if (endOfInput) {
+            while (encoder.flush(byteBuffer).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+        }
+        charBuffer.compact();
+    }
+
+    private void writeBytes() throws IOException {
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
         }
+        byteBuffer.clear();
     }
 }
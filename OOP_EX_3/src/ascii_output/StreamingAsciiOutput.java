@@ -0,0 +1,46 @@
+package ascii_output;
+
+/**
+ * An object implementing this interface can output a 2D array of chars
+ * one row at a time, as soon as each row is ready. A frame is output by
+ * a call to begin, a call to row for every row in order, and a call to
+ * end.
+ */
+public interface StreamingAsciiOutput {
+    /**
+     * Start a frame of the specified size
+     */
+    void begin(int rows, int columns);
+
+    /**
+     * Output the next row of the frame. The array may be reused by the
+     * caller once this method returns
+     */
+    void row(char[] row);
+
+    /**
+     * Output the next row of the frame together with the average color
+     * of every character, as packed RGB. Outputs that do not show colors
+     * output the characters only
+     */
+    default void row(char[] row, int[] colors) {
+        row(row);
+    }
+
+    /**
+     * Finish the frame
+     */
+    void end();
+
+    /**
+     * Returns a streaming view of the specified output: the output itself
+     * if it streams natively, otherwise an adapter that collects the rows
+     * and passes the whole frame to its out method at the end
+     */
+    static StreamingAsciiOutput of(AsciiOutput output) {
+        if (output instanceof StreamingAsciiOutput) {
+            return (StreamingAsciiOutput) output;
+        }
+        return new CollectingAsciiOutput(output);
+    }
+}
@@ -0,0 +1,336 @@
+package image;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The frames of an animation, read one at a time: either the frames of an animated GIF, or the image files
+ * of a directory ordered by the number in their names (frame_2.png comes before frame_10.png).
+ * The frames of a GIF are composed the way a viewer shows them: every frame is drawn at its position over
+ * the previous ones, on a white canvas of the size of the GIF, honoring the disposal method of each frame.
+ * The frames of a directory must all have the same size.
+ */
+public class FrameSequence implements Closeable {
+    private static final String GIF_SUFFIX = ".gif";
+    private static final String GIF_FORMAT = "gif";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+    private static final String RESTORE_TO_PREVIOUS = "restoreToPrevious";
+    private static final String FRAME_SIZE_ERROR = "All frames must have the same size, frame ";
+    private static final String READ_ERROR = "Cannot read ";
+    private static final int MAX_FRAME_NUMBER_DIGITS = 18; // Still fits in a long
+
+    private final ImageReader gifReader; // null for a directory of frames
+    private final ImageInputStream gifStream;
+    private final File[] frameFiles; // null for a GIF
+    private final int frameCount;
+    private int nextFrame = 0;
+    private BufferedImage canvas; // The composed GIF frame shown so far
+    private BufferedImage disposal; // What the canvas returns to before the next GIF frame is drawn
+    private int firstWidth = -1;
+    private int firstHeight = -1;
+
+    /**
+     * Opens a GIF file or a directory of frames.
+     *
+     * @param path The path of the GIF file or of the directory.
+     * @throws IOException If the file cannot be read, or the directory holds no image files.
+     */
+    public FrameSequence(String path) throws IOException {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            this.gifReader = null;
+            this.gifStream = null;
+            this.frameFiles = listFrameFiles(file);
+            this.frameCount = frameFiles.length;
+            if (frameCount == 0) {
+                throw new IOException("No frames in " + path);
+            }
+            return;
+        }
+        this.frameFiles = null;
+        this.gifReader = openGif(file);
+        this.gifStream = (ImageInputStream) gifReader.getInput();
+        try {
+            this.frameCount = gifReader.getNumImages(true);
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(gifReader, gifStream, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a GIF reader on a file. The caller must dispose of the reader and close its input stream.
+     *
+     * @param file The GIF file.
+     * @return The reader, reading the file.
+     * @throws IOException If the file cannot be opened, or no GIF reader is available.
+     */
+    private static ImageReader openGif(File file) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException(READ_ERROR + file);
+        }
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(GIF_FORMAT);
+            if (!readers.hasNext()) {
+                throw new IOException(READ_ERROR + file);
+            }
+            reader = readers.next();
+            reader.setInput(stream, false);
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(reader, stream, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Disposes of a reader and closes its stream after a failure, keeping any failure to close as
+     * suppressed by the original one.
+     */
+    private static void closeAfterFailure(ImageReader reader, ImageInputStream stream, Exception failure) {
+        if (reader != null) {
+            reader.dispose();
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Checks whether a path names an animation rather than a still image: a directory, or a GIF file with
+     * more than one frame. Only the headers of a GIF are read up to its second frame, rather than every
+     * frame being counted.
+     *
+     * @param path The path to check.
+     * @return true if the path should be read as a FrameSequence, false otherwise.
+     */
+    public static boolean isFrameSequence(String path) {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            return true;
+        }
+        if (!path.toLowerCase(Locale.ROOT).endsWith(GIF_SUFFIX) || !file.isFile()) {
+            return false;
+        }
+        ImageReader reader;
+        try {
+            reader = openGif(file);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        ImageInputStream stream = (ImageInputStream) reader.getInput();
+        try (stream) {
+            // The size of the second frame is read from its header, skipping the data of the first frame
+            reader.getWidth(1);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Returns the number of frames.
+     *
+     * @return The number of frames in the sequence.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return The next frame, or null after the last one.
+     * @throws IOException If the frame cannot be read, or its size differs from the first frame.
+     */
+    public Image nextFrame() throws IOException {
+        if (nextFrame >= frameCount) {
+            return null;
+        }
+        BufferedImage frame = frameFiles != null ? ImageIO.read(frameFiles[nextFrame]) :
+                composeGifFrame(nextFrame);
+        if (frame == null) {
+            throw new IOException("Cannot read frame " + nextFrame);
+        }
+        if (firstWidth < 0) {
+            firstWidth = frame.getWidth();
+            firstHeight = frame.getHeight();
+        } else if (frame.getWidth() != firstWidth || frame.getHeight() != firstHeight) {
+            throw new IOException(FRAME_SIZE_ERROR + nextFrame);
+        }
+        nextFrame++;
+        return new Image(frame);
+    }
+
+    /**
+     * Draws a GIF frame over the canvas, after disposing of the previous frame as it requested.
+     *
+     * @param index The index of the frame.
+     * @return The canvas, showing the composed frame.
+     * @throws IOException If the frame cannot be read.
+     */
+    private BufferedImage composeGifFrame(int index) throws IOException {
+        BufferedImage frame = gifReader.read(index);
+        IIOMetadata metadata = gifReader.getImageMetadata(index);
+        Node descriptor = findNode(metadata, GIF_IMAGE_METADATA, "ImageDescriptor");
+        Node control = findNode(metadata, GIF_IMAGE_METADATA, "GraphicControlExtension");
+        int left = intAttribute(descriptor, "imageLeftPosition");
+        int top = intAttribute(descriptor, "imageTopPosition");
+        if (canvas == null) {
+            Node screen = findNode(gifReader.getStreamMetadata(), GIF_STREAM_METADATA,
+                    "LogicalScreenDescriptor");
+            int canvasWidth = Math.max(intAttribute(screen, "logicalScreenWidth"),
+                    left + frame.getWidth());
+            int canvasHeight = Math.max(intAttribute(screen, "logicalScreenHeight"),
+                    top + frame.getHeight());
+            canvas = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_RGB);
+            fillWhite(canvas, 0, 0, canvasWidth, canvasHeight);
+        } else if (disposal != null) {
+            canvas.getRaster().setRect(disposal.getRaster());
+        }
+        String disposalMethod = control == null ? "" : attribute(control, "disposalMethod");
+        if (disposalMethod.equals(RESTORE_TO_PREVIOUS)) {
+            disposal = copyOf(canvas);
+        }
+        Graphics2D graphics = canvas.createGraphics();
+        graphics.drawImage(frame, left, top, null);
+        graphics.dispose();
+        if (disposalMethod.equals(RESTORE_TO_BACKGROUND)) {
+            disposal = copyOf(canvas);
+            fillWhite(disposal, left, top, frame.getWidth(), frame.getHeight());
+        } else if (!disposalMethod.equals(RESTORE_TO_PREVIOUS)) {
+            disposal = null;
+        }
+        return canvas;
+    }
+
+    private static BufferedImage copyOf(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        copy.getRaster().setRect(image.getRaster());
+        return copy;
+    }
+
+    private static void fillWhite(BufferedImage image, int x, int y, int width, int height) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(x, y, width, height);
+        graphics.dispose();
+    }
+
+    /**
+     * Finds the first node with the given name in a tree of metadata.
+     *
+     * @param metadata   The metadata, or null.
+     * @param formatName The name of the metadata format.
+     * @param nodeName   The name of the node.
+     * @return The node, or null if there is none.
+     */
+    private static Node findNode(IIOMetadata metadata, String formatName, String nodeName) {
+        if (metadata == null) {
+            return null;
+        }
+        for (Node node = metadata.getAsTree(formatName).getFirstChild(); node != null;
+             node = node.getNextSibling()) {
+            if (node.getNodeName().equals(nodeName)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name) {
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = attributes == null ? null : attributes.getNamedItem(name);
+        return attribute == null ? "" : attribute.getNodeValue();
+    }
+
+    private static int intAttribute(Node node, String name) {
+        if (node == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(attribute(node, name));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Lists the image files of a directory, in the order of the first number in their names, and by name
+     * between files with the same number or with no number.
+     *
+     * @param directory The directory of frames.
+     * @return The frame files, in order.
+     */
+    private static File[] listFrameFiles(File directory) {
+        List<String> suffixes = Arrays.asList(ImageIO.getReaderFileSuffixes());
+        List<File> files = new ArrayList<>();
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return new File[0];
+        }
+        for (File child : children) {
+            String name = child.getName();
+            int dot = name.lastIndexOf('.');
+            if (child.isFile() && dot >= 0 &&
+                    suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+                files.add(child);
+            }
+        }
+        files.sort(Comparator.comparingLong((File file) -> frameNumber(file.getName()))
+                .thenComparing(File::getName));
+        return files.toArray(new File[0]);
+    }
+
+    private static long frameNumber(String name) {
+        int start = 0;
+        while (start < name.length() && !Character.isDigit(name.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < name.length() && end - start < MAX_FRAME_NUMBER_DIGITS &&
+                Character.isDigit(name.charAt(end))) {
+            end++;
+        }
+        return start == end ? Long.MAX_VALUE : Long.parseLong(name.substring(start, end));
+    }
+
+    /**
+     * Releases the GIF reader and its file.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (gifReader != null) {
+            gifReader.dispose();
+        }
+        if (gifStream != null) {
+            gifStream.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package image;
+
+import java.util.logging.Logger;
+
+/**
+ * Converts runs of packed RGB pixels to their grayscale, scaled so that it is an exact integer: the red,
+ * green and blue channels are weighted by 2126, 7152 and 722, which are the luminance weights 0.2126,
+ * 0.7152 and 0.0722 times 10000. Every kernel gives exactly the same values, so the choice of kernel never
+ * changes a result.
+ * The vector kernel lives in its own source root, vector/src, the only one compiled with
+ * --add-modules jdk.incubator.vector, and is loaded by name. When its classes are on the class path and the
+ * module is present at run time, the default kernel converts a whole vector of pixels per instruction;
+ * otherwise it is the scalar kernel.
+ * Setting the system property "image.scalarGrayScale" to true forces the scalar kernel.
+ */
+public abstract class GrayScaleKernel {
+    static final int RED_WEIGHT = 2126;
+    static final int GREEN_WEIGHT = 7152;
+    static final int BLUE_WEIGHT = 722;
+
+    private static final String SCALAR_PROPERTY = "image.scalarGrayScale";
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL_CLASS = "image.VectorGrayScaleKernel";
+    private static final GrayScaleKernel SCALAR = new ScalarGrayScaleKernel();
+    private static final GrayScaleKernel VECTOR = loadVectorKernel();
+    private static final GrayScaleKernel DEFAULT =
+            VECTOR == null || Boolean.getBoolean(SCALAR_PROPERTY) ? SCALAR : VECTOR;
+
+    GrayScaleKernel() {
+    }
+
+    /**
+     * Returns the kernel the images use.
+     *
+     * @return The vector kernel if it is available and not disabled, the scalar kernel otherwise.
+     */
+    public static GrayScaleKernel getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the kernel that converts one pixel at a time.
+     *
+     * @return The scalar kernel.
+     */
+    public static GrayScaleKernel scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * Returns the kernel built on the Vector API.
+     *
+     * @return The vector kernel, or null if the jdk.incubator.vector module is not available.
+     */
+    public static GrayScaleKernel vector() {
+        return VECTOR;
+    }
+
+    /**
+     * Calculates the scaled grayscale of a run of pixels.
+     *
+     * @param pixels The packed RGB pixels.
+     * @param from   The index of the first pixel of the run.
+     * @param length The number of pixels in the run.
+     * @param gray   The array to store the grayscale of the pixels in, from index 0.
+     */
+    public abstract void grayScaleRow(int[] pixels, int from, int length, int[] gray);
+
+    /**
+     * Adds up the scaled grayscale of a run of pixels, such as a row of a square.
+     *
+     * @param pixels The packed RGB pixels.
+     * @param from   The index of the first pixel of the run.
+     * @param length The number of pixels in the run.
+     * @return The total scaled grayscale of the run.
+     */
+    public abstract long sumGrayScale(int[] pixels, int from, int length);
+
+    /**
+     * Calculates the scaled grayscale of a single pixel.
+     *
+     * @param pixel The packed RGB value of the pixel.
+     * @return The scaled grayscale of the pixel.
+     */
+    static int grayScale(int pixel) {
+        return ((pixel >> 16) & 0xFF) * RED_WEIGHT + ((pixel >> 8) & 0xFF) * GREEN_WEIGHT +
+                (pixel & 0xFF) * BLUE_WEIGHT;
+    }
+
+    /**
+     * Loads the vector kernel by name, so that nothing links against the incubator module unless it is
+     * present.
+     */
+    private static GrayScaleKernel loadVectorKernel() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            Logger.getGlobal().fine("Vector API not available, using the scalar grayscale kernel");
+            return null;
+        }
+        try {
+            return (GrayScaleKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor()
+                    .newInstance();
+        } catch (ClassNotFoundException e) {
+            Logger.getGlobal().fine("Vector kernel not on the class path, using the scalar grayscale kernel");
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Logger.getGlobal().warning("Failed to load the vector grayscale kernel: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Converts one pixel at a time.
+     */
+    private static final class ScalarGrayScaleKernel extends GrayScaleKernel {
+        @Override
+        public void grayScaleRow(int[] pixels, int from, int length, int[] gray) {
+            for (int i = 0; i < length; i++) {
+                gray[i] = grayScale(pixels[from + i]);
+            }
+        }
+
+        @Override
+        public long sumGrayScale(int[] pixels, int from, int length) {
+            long total = 0;
+            for (int i = from; i < from + length; i++) {
+                total += grayScale(pixels[i]);
+            }
+            return total;
+        }
+    }
+}
@@ -3,8 +3,16 @@ package image;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
 
 /**
  * A package-private class of the package image.
@@ -13,53 +21,278 @@ import java.io.IOException;
  */
 public class Image {
 
-    private final Color[][] pixelArray;
-    private Color[][] pixelArrayNormal; // Normalized pixel array for resized images
+    private static final int RGB_MASK = 0xFFFFFF;
+    private static final int GRAY_LEVELS = 256;
+    private static final int MAX_CHANNEL_VALUE = 255;
+    // Grayscale weights scaled by GRAY_SCALE_FACTOR, so a pixel's grayscale is an exact integer
+    private static final long GRAY_SCALE_FACTOR = 10_000;
+    private static final long RED_WEIGHT = GrayScaleKernel.RED_WEIGHT;
+    private static final long GREEN_WEIGHT = GrayScaleKernel.GREEN_WEIGHT;
+    private static final long BLUE_WEIGHT = GrayScaleKernel.BLUE_WEIGHT;
+    // The scaled grayscale of a white pixel, which is what the padding of the normalized image is made of
+    private static final long WHITE_SCALED_GRAY_SCALE = MAX_CHANNEL_VALUE * (RED_WEIGHT + GREEN_WEIGHT +
+            BLUE_WEIGHT);
+    private static final double NANOS_IN_MILLI = 1_000_000.0;
+    private static final double PIXELS_IN_MEGAPIXEL = 1_000_000.0;
+    private static final GrayScaleKernel GRAY_SCALE_KERNEL = GrayScaleKernel.getDefault();
+
+    private final int[] pixelArray; // Packed RGB pixels of the original image, row by row
+    private long[] grayScaleIntegral; // Summed-area table of the scaled grayscale of the original image
+    private int[][] colorArray; // Average packed RGB color of the image squares, or null
     private double[][] brightnessArray; // Brightness values for image squares
+    private int squareSize; // Size of the squares in brightnessArray, in pixels
     private final int width; // Original image width
     private int widthNormal; // Width of the normalized (resized) image
     private final int height; // Original image height
     private int heightNormal; // Height of the normalized (resized) image
+    private int xOffset; // Column of the normalized image where the original image starts
+    private int yOffset; // Row of the normalized image where the original image starts
 
     /**
      * Loads an image from a file and initializes the pixel array based on the image content.
+     * The pixels are read in bulk from the decoded raster, one row at a time.
      *
      * @param filename The path to the image file.
      * @throws IOException If an error occurs during reading the image file.
      */
     public Image(String filename) throws IOException {
+        long startTime = System.nanoTime();
         BufferedImage im = ImageIO.read(new File(filename));
         width = im.getWidth();
         height = im.getHeight();
+        pixelArray = readPixels(im);
+        long loadNanos = System.nanoTime() - startTime;
+        // The message is only formatted if it is logged
+        Logger.getGlobal().fine(() -> String.format("Loaded \"%s\" (%dx%d) in %.2f ms/MP", filename, width,
+                height, (loadNanos / NANOS_IN_MILLI) / (width * (double) height / PIXELS_IN_MEGAPIXEL)));
+    }
 
-
-        pixelArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                pixelArray[i][j] = new Color(im.getRGB(j, i));
-            }
-        }
+    /**
+     * Initializes the Image object from an image that is already decoded, such as a frame of an animation.
+     * The pixels are copied, so later changes to the given image do not affect this one.
+     *
+     * @param im The decoded image.
+     */
+    public Image(BufferedImage im) {
+        width = im.getWidth();
+        height = im.getHeight();
+        pixelArray = readPixels(im);
     }
 
     /**
      * Initializes the Image object with a predefined pixel array, width, and height.
-     * This constructor is useful for manual image creation or modification.
+     * This constructor is useful for manual image creation or modification. The colors are copied into the
+     * packed representation, so later changes to the given array do not affect the image.
      *
      * @param pixelArray The array of Colors representing the image.
      * @param width      The width of the image.
      * @param height     The height of the image.
      */
     public Image(Color[][] pixelArray, int width, int height) {
-        this.pixelArray = pixelArray;
         this.width = width;
         this.height = height;
+        this.pixelArray = new int[height * width];
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                this.pixelArray[i * width + j] = pixelArray[i][j].getRGB() & RGB_MASK;
+            }
+        }
+    }
+
+    private Image(int[] pixelArray, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixelArray = pixelArray;
     }
 
+    /**
+     * Creates an image of a rectangular region of this image. Only the pixels of the region are copied, so
+     * the cost depends on the size of the region and not on the size of this image. The new image is not
+     * resized yet.
+     *
+     * @param x      The left column of the region.
+     * @param y      The top row of the region.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @return The image of the region.
+     * @throws IllegalArgumentException If the region is empty or not within the image.
+     */
+    public Image crop(int x, int y, int width, int height) {
+        if (!isValidRegion(x, y, width, height)) {
+            throw new IllegalArgumentException(String.format("Region %dx%d at (%d, %d) is not within %dx%d",
+                    width, height, x, y, this.width, this.height));
+        }
+        int[] region = new int[width * height];
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(this.pixelArray, (y + i) * this.width + x, region, i * width, width);
+        }
+        return new Image(region, width, height);
+    }
+
+    /**
+     * Checks whether a rectangular region is non-empty and lies within the original image.
+     *
+     * @param x      The left column of the region.
+     * @param y      The top row of the region.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @return true if the region can be cropped, false otherwise.
+     */
+    public boolean isValidRegion(int x, int y, int width, int height) {
+        return x >= 0 && y >= 0 && width > 0 && height > 0 && x <= this.width - width &&
+                y <= this.height - height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
 
     public double[][] getBrightnessArray() {
         return brightnessArray;
     }
 
+    /**
+     * Returns the average color of every square, calculated together with the brightness.
+     *
+     * @return The packed RGB colors of the squares, or null if the image was divided without colors.
+     */
+    public int[][] getColorArray() {
+        return colorArray;
+    }
+
+    /**
+     * Unpacks the pixels of a decoded image into packed RGB values. The common raster layouts produced by
+     * ImageIO are read directly from their data buffer; any other layout is converted through the image's
+     * color model, one row at a time.
+     *
+     * @param im The decoded image.
+     * @return The packed RGB pixels of the image, row by row.
+     */
+    private static int[] readPixels(BufferedImage im) {
+        int[] pixels = new int[im.getWidth() * im.getHeight()];
+        Raster raster = im.getRaster();
+        switch (im.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                readIntPixels(raster, pixels);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                readThreeBytePixels(raster, pixels);
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                readGrayPixels(raster, im.getColorModel(), pixels);
+                break;
+            default:
+                readPixelsByRows(im, pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Copies pixels out of an int-packed raster, dropping the alpha channel.
+     *
+     * @param raster The raster of a TYPE_INT_RGB or TYPE_INT_ARGB image.
+     * @param pixels The array to fill with packed RGB values.
+     */
+    private static void readIntPixels(Raster raster, int[] pixels) {
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        int[] data = dataBuffer.getData();
+        int scanline = sampleModel.getScanlineStride();
+        int base = dataBuffer.getOffset() + sampleModel.getOffset(-raster.getSampleModelTranslateX(),
+                -raster.getSampleModelTranslateY());
+        int rasterWidth = raster.getWidth();
+        for (int i = 0; i < raster.getHeight(); i++) {
+            int rowStart = base + i * scanline;
+            int target = i * rasterWidth;
+            for (int j = 0; j < rasterWidth; j++) {
+                pixels[target + j] = data[rowStart + j] & RGB_MASK;
+            }
+        }
+    }
+
+    /**
+     * Copies pixels out of an interleaved three byte raster, honoring the order of its color bands.
+     *
+     * @param raster The raster of a TYPE_3BYTE_BGR image.
+     * @param pixels The array to fill with packed RGB values.
+     */
+    private static void readThreeBytePixels(Raster raster, int[] pixels) {
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] data = dataBuffer.getData();
+        int scanline = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int redOffset = bandOffsets[0];
+        int greenOffset = bandOffsets[1];
+        int blueOffset = bandOffsets[2];
+        int base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanline -
+                raster.getSampleModelTranslateX() * pixelStride;
+        int rasterWidth = raster.getWidth();
+        for (int i = 0; i < raster.getHeight(); i++) {
+            int source = base + i * scanline;
+            int target = i * rasterWidth;
+            for (int j = 0; j < rasterWidth; j++, source += pixelStride) {
+                pixels[target + j] = ((data[source + redOffset] & 0xFF) << 16) |
+                        ((data[source + greenOffset] & 0xFF) << 8) |
+                        (data[source + blueOffset] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Copies pixels out of a single byte gray raster. Every gray level is converted through the color model
+     * once, so the result matches what BufferedImage.getRGB would return for each pixel.
+     *
+     * @param raster     The raster of a TYPE_BYTE_GRAY image.
+     * @param colorModel The color model of the image.
+     * @param pixels     The array to fill with packed RGB values.
+     */
+    private static void readGrayPixels(Raster raster, ColorModel colorModel, int[] pixels) {
+        int[] grayToRgb = new int[GRAY_LEVELS];
+        for (int level = 0; level < GRAY_LEVELS; level++) {
+            grayToRgb[level] = colorModel.getRGB(new byte[]{(byte) level}) & RGB_MASK;
+        }
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] data = dataBuffer.getData();
+        int scanline = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanline -
+                raster.getSampleModelTranslateX() * pixelStride + sampleModel.getBandOffsets()[0];
+        int rasterWidth = raster.getWidth();
+        for (int i = 0; i < raster.getHeight(); i++) {
+            int source = base + i * scanline;
+            int target = i * rasterWidth;
+            for (int j = 0; j < rasterWidth; j++, source += pixelStride) {
+                pixels[target + j] = grayToRgb[data[source] & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Converts the pixels of an image with any other raster layout through its color model, a whole row
+     * per call.
+     *
+     * @param im     The decoded image.
+     * @param pixels The array to fill with packed RGB values.
+     */
+    private static void readPixelsByRows(BufferedImage im, int[] pixels) {
+        int imageWidth = im.getWidth();
+        for (int i = 0; i < im.getHeight(); i++) {
+            int rowStart = i * imageWidth;
+            im.getRGB(0, i, imageWidth, 1, pixels, rowStart, imageWidth);
+            for (int j = rowStart; j < rowStart + imageWidth; j++) {
+                pixels[j] &= RGB_MASK;
+            }
+        }
+    }
+
 
     /**
      * Saves the current state of the image to a file. The saved image format is JPEG.
@@ -67,15 +300,9 @@ public class Image {
      * @param fileName The name of the file to save the image to, without the extension.
      */
     public void saveImage(String fileName) {
-        // Initialize BufferedImage, assuming Color[][] is already properly populated.
-        BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
-                BufferedImage.TYPE_INT_RGB);
-        // Set each pixel of the BufferedImage to the color from the Color[][].
-        for (int x = 0; x < pixelArray.length; x++) {
-            for (int y = 0; y < pixelArray[x].length; y++) {
-                bufferedImage.setRGB(y, x, pixelArray[x][y].getRGB());
-            }
-        }
+        // The packed pixels are already in the TYPE_INT_RGB layout, so they are copied in a single call.
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, pixelArray, 0, width);
         File outputfile = new File(fileName + ".jpeg");
         try {
             ImageIO.write(bufferedImage, "jpeg", outputfile);
@@ -92,33 +319,67 @@ public class Image {
         return heightNormal;
     }
 
+    /**
+     * Checks whether the normalized image can be divided into whole squares with the given number of
+     * squares per row.
+     *
+     * @param squaresPerRow The requested number of squares per row.
+     * @return true if the square size divides both the normalized width and height, false otherwise.
+     */
+    public boolean isValidResolution(int squaresPerRow) {
+        if (squaresPerRow <= 0 || squaresPerRow > widthNormal || widthNormal % squaresPerRow != 0) {
+            return false;
+        }
+        return heightNormal % (widthNormal / squaresPerRow) == 0;
+    }
+
 
     /**
      * Resizes the image to dimensions that are powers of two. This method is often used in texture mapping
      * where such dimensions are required. The resizing strategy centers the original image within the new
      * dimensions,
-     * filling the surrounding areas with white.
+     * filling the surrounding areas with white. The padding is not stored: only the position of the original
+     * image within the new dimensions is kept, and every pixel outside of it is known to be white. The
+     * grayscale summed-area table of the original image is built the first time the image is divided into
+     * squares, so the brightness of any square can then be read in constant time.
      */
     public void resizeImage() {
         this.widthNormal = nextPowerOfTwo(width);
         this.heightNormal = nextPowerOfTwo(height);
-        this.pixelArrayNormal = new Color[this.heightNormal][this.widthNormal];
-
+        this.xOffset = (this.widthNormal - width) / 2;
+        this.yOffset = (this.heightNormal - height) / 2;
+        this.grayScaleIntegral = null;
+    }
 
-        // Fill the new array with white pixels
-        Color white = new Color(255, 255, 255); // Assuming RGB color model
-        for (int i = 0; i < this.heightNormal; i++) {
-            for (int j = 0; j < this.widthNormal; j++) {
-                this.pixelArrayNormal[i][j] = white;
-            }
+    /**
+     * Builds the grayscale summed-area table of the original image right away, instead of the first time
+     * the image is divided into squares, so that the work can be done ahead of time on another thread. The
+     * table is dropped again by resizeImage.
+     */
+    public void prepareSquares() {
+        if (this.grayScaleIntegral == null) {
+            buildGrayScaleIntegral();
         }
+    }
 
-        // Copy the original image pixels into the center of the new array
-        int xOffset = (this.widthNormal - width) / 2;
-        int yOffset = (this.heightNormal - height) / 2;
+    /**
+     * Builds the summed-area table of the original image. Entry (y, x) of the table holds the total scaled
+     * grayscale of all pixels above and to the left of pixel (y, x), so the table has one extra row and
+     * column of zeros. The grayscale of every row is calculated by the grayscale kernel before it is added
+     * up.
+     */
+    private void buildGrayScaleIntegral() {
+        int stride = width + 1;
+        this.grayScaleIntegral = new long[(height + 1) * stride];
+        int[] rowGrayScale = new int[width];
         for (int i = 0; i < height; i++) {
+            long rowSum = 0;
+            int above = i * stride + 1;
+            int current = above + stride;
+            GRAY_SCALE_KERNEL.grayScaleRow(pixelArray, i * width, width, rowGrayScale);
             for (int j = 0; j < width; j++) {
-                this.pixelArrayNormal[yOffset + i][xOffset + j] = this.pixelArray[i][j];
+                rowSum += rowGrayScale[j];
+                grayScaleIntegral[current + j] = grayScaleIntegral[above + j] + rowSum;
             }
         }
     }
@@ -142,20 +403,157 @@ public class Image {
 
     /**
      * Divides the image into equal-sized squares and calculates the average brightness for each square.
-     * The brightness calculation converts each pixel to grayscale first, then averages these values for
-     * the square.
+     * The brightness of each square is read from the grayscale summed-area table, so the cost depends only
+     * on the number of squares and not on the number of pixels.
      *
      * @param squaresPerRow The number of squares per row, which determines the total number of squares
      *                      (assuming a square image).
      */
     public void divideIntoSquaresAndCalculationBrightness(int squaresPerRow) {
-        int squareSize = widthNormal / squaresPerRow;
+        divideIntoSquares(squaresPerRow);
+        calculationBrightnessOfRows(0, this.brightnessArray.length);
+    }
+
+    /**
+     * Prepares an empty brightness array for the given number of squares per row, without calculating
+     * any brightness yet. The rows of the array can then be filled with calculationBrightnessOfRows,
+     * possibly from several threads, each working on a different range of rows.
+     *
+     * @param squaresPerRow The number of squares per row.
+     */
+    public void divideIntoSquares(int squaresPerRow) {
+        divideIntoSquares(squaresPerRow, false);
+    }
+
+    /**
+     * Prepares an empty brightness array like divideIntoSquares, and optionally an empty color array that
+     * calculationBrightnessOfRows then fills with the average color of every square, in the same pass as
+     * the brightness. No table is kept for the colors, so color mode takes no more memory than gray mode.
+     *
+     * @param squaresPerRow The number of squares per row.
+     * @param withColors    true to calculate the average color of the squares too.
+     */
+    public void divideIntoSquares(int squaresPerRow, boolean withColors) {
+        if (this.grayScaleIntegral == null) {
+            buildGrayScaleIntegral();
+        }
+        this.squareSize = widthNormal / squaresPerRow;
+        this.brightnessArray = new double[heightNormal / squareSize][widthNormal / squareSize];
+        this.colorArray = withColors ? new int[brightnessArray.length][brightnessArray[0].length] : null;
+    }
+
+    /**
+     * Divides the image into squares like divideIntoSquaresAndCalculationBrightness, for an image that is the
+     * next frame of the given one. Only the squares whose pixels differ from the same square of the previous
+     * frame are calculated, directly from their pixels; the brightness of every other square is copied from
+     * the previous frame. The summed-area table is not built, so the cost is a comparison of the pixels plus
+     * the calculation of the changed squares only. The brightness values are exactly the ones a full
+     * calculation gives.
+     * This is only possible if the previous frame has the same size and was divided into the same number of
+     * squares per row; otherwise nothing is done and null is returned.
+     *
+     * @param squaresPerRow The number of squares per row.
+     * @param previous      The previous frame, already divided into squares.
+     * @return For every square, whether it changed since the previous frame, or null if the previous frame
+     * cannot be reused.
+     */
+    public boolean[][] divideIntoSquaresReusing(int squaresPerRow, Image previous) {
+        int newSquareSize = widthNormal / squaresPerRow;
+        if (previous.brightnessArray == null || previous.width != width || previous.height != height ||
+                previous.widthNormal != widthNormal || previous.heightNormal != heightNormal ||
+                previous.squareSize != newSquareSize) {
+            return null;
+        }
+        this.squareSize = newSquareSize;
         this.brightnessArray = new double[heightNormal / squareSize][widthNormal / squareSize];
-        // Initialize the four-dimensional array to hold all sub-images
-        // First two dimensions are for rows and columns of the grid of sub-images
-        for (int y = 0, row = 0; y < heightNormal; y += squareSize, row++) {
+        this.colorArray = null;
+        boolean[][] changed = new boolean[brightnessArray.length][brightnessArray[0].length];
+        for (int row = 0; row < brightnessArray.length; row++) {
+            for (int col = 0; col < brightnessArray[row].length; col++) {
+                changed[row][col] = squareDiffers(previous, col * squareSize, row * squareSize);
+                this.brightnessArray[row][col] = changed[row][col] ?
+                        toBrightness(sumSquareGrayScale(col * squareSize, row * squareSize)) :
+                        previous.brightnessArray[row][col];
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compares a square of the normalized image with the same square of another image of the same size.
+     * Only the part of the square that lies on the original image is compared, as the padding is white in
+     * both.
+     *
+     * @param other  The other image.
+     * @param startX The starting x-coordinate of the square.
+     * @param startY The starting y-coordinate of the square.
+     * @return true if any pixel of the square differs, false otherwise.
+     */
+    private boolean squareDiffers(Image other, int startX, int startY) {
+        int fromX = Math.max(startX - xOffset, 0);
+        int toX = Math.min(startX + squareSize - xOffset, width);
+        int fromY = Math.max(startY - yOffset, 0);
+        int toY = Math.min(startY + squareSize - yOffset, height);
+        if (fromX >= toX) {
+            return false;
+        }
+        for (int y = fromY; y < toY; y++) {
+            int rowStart = y * width;
+            if (!Arrays.equals(pixelArray, rowStart + fromX, rowStart + toX,
+                    other.pixelArray, rowStart + fromX, rowStart + toX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds up the scaled grayscale of a square of the normalized image pixel by pixel, without the
+     * summed-area table. Only the pixels of the original image are read; the rest of the square is white.
+     *
+     * @param startX The starting x-coordinate of the square.
+     * @param startY The starting y-coordinate of the square.
+     * @return The total scaled grayscale of the square.
+     */
+    private long sumSquareGrayScale(int startX, int startY) {
+        int fromX = Math.max(startX - xOffset, 0);
+        int toX = Math.min(startX + squareSize - xOffset, width);
+        int fromY = Math.max(startY - yOffset, 0);
+        int toY = Math.min(startY + squareSize - yOffset, height);
+        long totalGrayScale = 0;
+        long originalPixels = 0;
+        if (fromX < toX && fromY < toY) {
+            for (int y = fromY; y < toY; y++) {
+                totalGrayScale += GRAY_SCALE_KERNEL.sumGrayScale(pixelArray, y * width + fromX, toX - fromX);
+            }
+            originalPixels = (long) (toX - fromX) * (toY - fromY);
+        }
+        return totalGrayScale + ((long) squareSize * squareSize - originalPixels) * WHITE_SCALED_GRAY_SCALE;
+    }
+
+    /**
+     * Converts the total scaled grayscale of a square into its average brightness, on a 0-1 scale.
+     *
+     * @param totalGrayScale The total scaled grayscale of a square of the current square size.
+     * @return The average brightness of the square.
+     */
+    private double toBrightness(long totalGrayScale) {
+        return totalGrayScale / ((double) GRAY_SCALE_FACTOR * squareSize * squareSize * MAX_CHANNEL_VALUE);
+    }
+
+    /**
+     * Calculates the average brightness of every square in a range of rows of the brightness array
+     * prepared by divideIntoSquares. Different ranges touch disjoint parts of the array, so they may be
+     * calculated concurrently.
+     *
+     * @param fromRow The first row of squares to calculate, inclusive.
+     * @param toRow   The last row of squares to calculate, exclusive.
+     */
+    public void calculationBrightnessOfRows(int fromRow, int toRow) {
+        for (int row = fromRow; row < toRow; row++) {
+            int y = row * squareSize;
             for (int x = 0, col = 0; x < widthNormal; x += squareSize, col++) {
-                // Extract each square and store it in the corresponding position in the subImages array
+                // Extract each square and store it in the corresponding position in the brightness array
                 extractSquarePixels(x, y, squareSize, row, col);
             }
         }
@@ -163,10 +561,12 @@ public class Image {
 
     /**
      * Extracts a square of pixels from the normalized image and calculates its average brightness.
-     * This method iterates through each pixel in the specified square, converts it to grayscale,
-     * and accumulates the total grayscale value. The average brightness of the square is then calculated
-     * by dividing the total grayscale value by the number of pixels in the square and normalizing it to a
-     * 0-1 scale.
+     * The square is clipped to the original image, whose total grayscale value is taken from four corners
+     * of the summed-area table, and every pixel of the square outside of the original image adds the
+     * grayscale of white. The average brightness of the square is then calculated by dividing the total
+     * grayscale value by the number of pixels in the square and normalizing it to a 0-1 scale.
+     * When colors are calculated, the channels of the pixels of the clipped square are added up here as
+     * well, with the padding counting as white.
      *
      * @param startX     The starting x-coordinate (column) of the square within the image.
      * @param startY     The starting y-coordinate (row) of the square within the image.
@@ -175,32 +575,209 @@ public class Image {
      * @param col        The column index in the brightnessArray to store the calculated average brightness.
      */
     private void extractSquarePixels(int startX, int startY, int squareSize, int row, int col) {
-        double totalGrayScale = 0;
-        for (int i = 0; i < squareSize; i++) {
-            for (int j = 0; j < squareSize; j++) {
-                totalGrayScale += getAverageGrayScaleFormPixel(this.pixelArrayNormal[startY + i][startX + j]);
+        int fromX = Math.max(startX - xOffset, 0);
+        int toX = Math.min(startX + squareSize - xOffset, width);
+        int fromY = Math.max(startY - yOffset, 0);
+        int toY = Math.min(startY + squareSize - yOffset, height);
+        long totalGrayScale = 0;
+        long originalPixels = 0;
+        if (fromX < toX && fromY < toY) {
+            int stride = width + 1;
+            int bottomRight = toY * stride + toX;
+            int bottomLeft = toY * stride + fromX;
+            int topRight = fromY * stride + toX;
+            int topLeft = fromY * stride + fromX;
+            totalGrayScale = grayScaleIntegral[bottomRight] - grayScaleIntegral[bottomLeft] -
+                    grayScaleIntegral[topRight] + grayScaleIntegral[topLeft];
+            originalPixels = (long) (toX - fromX) * (toY - fromY);
+        }
+        long paddingPixels = (long) squareSize * squareSize - originalPixels;
+        totalGrayScale += paddingPixels * WHITE_SCALED_GRAY_SCALE;
+        this.brightnessArray[row][col] = toBrightness(totalGrayScale);
+        if (this.colorArray != null) {
+            long pixels = (long) squareSize * squareSize;
+            long padding = paddingPixels * MAX_CHANNEL_VALUE;
+            long red = padding;
+            long green = padding;
+            long blue = padding;
+            for (int y = fromY; y < toY; y++) {
+                for (int i = y * width + fromX, end = y * width + toX; i < end; i++) {
+                    int pixel = pixelArray[i];
+                    red += (pixel >> 16) & 0xFF;
+                    green += (pixel >> 8) & 0xFF;
+                    blue += pixel & 0xFF;
+                }
             }
+            // Rounded to the nearest channel value
+            this.colorArray[row][col] = (int) ((red + pixels / 2) / pixels) << 16 |
+                    (int) ((green + pixels / 2) / pixels) << 8 | (int) ((blue + pixels / 2) / pixels);
         }
-        this.brightnessArray[row][col] = totalGrayScale / (squareSize * squareSize * 255);
     }
 
 
     /**
-     * Calculates the average grayscale value of a pixel. This is a utility method used in brightness
-     * calculations.
-     * The grayscale value is determined using a weighted sum of the red, green, and blue components of the
-     * color.
+     * Thresholds a square prepared by divideIntoSquares into a packed mask of maskSize by maskSize cells,
+     * where cell (y, x) is bit (y * maskSize + x), counting from the lowest bit of the first long. Every cell
+     * covers an equal part of the square, and its bit is set if its average brightness is at least one
+     * half. The brightness of a cell is read from the summed-area table, so the cost depends only on the
+     * number of cells; when the square is smaller than the mask, neighbouring cells read the same pixels.
+     * A square that lies entirely on the original image or entirely on the padding, which is most of them,
+     * takes a faster path that gives the same mask.
      *
-     * @param pixel The Color object representing the pixel.
-     * @return The average grayscale value of the pixel.
+     * @param row      The row of the square.
+     * @param col      The column of the square.
+     * @param maskSize The number of cells in each row and column of the mask.
+     * @param mask     The array to store the mask in, at least maskSize * maskSize bits long.
      */
-    private static double getAverageGrayScaleFormPixel(Color pixel) {
+    public void shapeMaskOfSquare(int row, int col, int maskSize, long[] mask) {
+        Arrays.fill(mask, 0);
+        int startX = col * squareSize;
+        int startY = row * squareSize;
+        int originX = startX - xOffset;
+        int originY = startY - yOffset;
+        if (originX >= 0 && originY >= 0 && originX + squareSize <= width && originY + squareSize <= height) {
+            if (squareSize < maskSize && maskSize <= Long.SIZE) {
+                shapeMaskOfPixels(originX, originY, maskSize, mask);
+                return;
+            }
+            if (squareSize % maskSize == 0) {
+                shapeMaskOfCells(originX, originY, maskSize, mask);
+                return;
+            }
+        }
+        if (originX >= width || originY >= height || originX + squareSize <= 0 || originY + squareSize <= 0) {
+            // The square is all padding, so every cell is white
+            for (int bit = 0; bit < maskSize * maskSize; bit++) {
+                mask[bit >>> 6] |= 1L << bit;
+            }
+            return;
+        }
+        for (int y = 0; y < maskSize; y++) {
+            int fromY = startY + y * squareSize / maskSize;
+            int toY = Math.max(fromY + 1, startY + (y + 1) * squareSize / maskSize);
+            for (int x = 0; x < maskSize; x++) {
+                int fromX = startX + x * squareSize / maskSize;
+                int toX = Math.max(fromX + 1, startX + (x + 1) * squareSize / maskSize);
+                long cellPixels = (long) (toX - fromX) * (toY - fromY);
+                if (2 * sumGrayScale(fromX, fromY, toX, toY) >= cellPixels * WHITE_SCALED_GRAY_SCALE) {
+                    int bit = y * maskSize + x;
+                    mask[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+    }
 
-        double red = pixel.getRed() * 0.2126;
-        double green = pixel.getGreen() * 0.7152;
-        double blue = pixel.getBlue() * 0.0722;
-        double grayScale = (red + green + blue);
-        return grayScale;
+    /**
+     * Thresholds a square of the original image that is smaller than the mask, so every cell of the mask
+     * lies within a single pixel. Cell x lies within pixel x * squareSize / maskSize, which is followed
+     * with a running remainder instead of a division per cell. Every pixel is thresholded once, and a row
+     * of cells that lies within the same row of pixels as the one above it copies its bits.
+     */
+    private void shapeMaskOfPixels(int originX, int originY, int maskSize, long[] mask) {
+        int pixelY = originY;
+        int remainderY = 0;
+        long rowBits = 0; // Bit x is the bit of cell x in the current row of pixels
+        int rowBitsY = -1;
+        for (int y = 0; y < maskSize; y++) {
+            if (rowBitsY != pixelY) {
+                rowBits = 0;
+                int pixel = pixelY * width + originX;
+                boolean bright = isBright(pixelArray[pixel]);
+                int remainderX = 0;
+                for (int x = 0; x < maskSize; x++) {
+                    if (bright) {
+                        rowBits |= 1L << x;
+                    }
+                    remainderX += squareSize;
+                    if (remainderX >= maskSize && x + 1 < maskSize) {
+                        remainderX -= maskSize;
+                        bright = isBright(pixelArray[++pixel]);
+                    }
+                }
+                rowBitsY = pixelY;
+            }
+            for (long bits = rowBits; bits != 0; bits &= bits - 1) {
+                int bit = y * maskSize + Long.numberOfTrailingZeros(bits);
+                mask[bit >>> 6] |= 1L << bit;
+            }
+            remainderY += squareSize;
+            if (remainderY >= maskSize) {
+                remainderY -= maskSize;
+                pixelY++;
+            }
+        }
+    }
+
+    private static boolean isBright(int pixel) {
+        return 2 * getScaledGrayScaleFromPixel(pixel) >= WHITE_SCALED_GRAY_SCALE;
+    }
+
+    /**
+     * Thresholds a square of the original image whose size is a multiple of the mask size, so all the
+     * cells have the same size and every corner of the summed-area table is read once per row of cells.
+     */
+    private void shapeMaskOfCells(int originX, int originY, int maskSize, long[] mask) {
+        int cellSize = squareSize / maskSize;
+        int stride = width + 1;
+        long threshold = (long) cellSize * cellSize * WHITE_SCALED_GRAY_SCALE;
+        for (int y = 0; y < maskSize; y++) {
+            int topRow = (originY + y * cellSize) * stride + originX;
+            int bottomRow = topRow + cellSize * stride;
+            long topLeft = grayScaleIntegral[topRow];
+            long bottomLeft = grayScaleIntegral[bottomRow];
+            for (int x = 0; x < maskSize; x++) {
+                long topRight = grayScaleIntegral[topRow + (x + 1) * cellSize];
+                long bottomRight = grayScaleIntegral[bottomRow + (x + 1) * cellSize];
+                if (2 * (bottomRight - bottomLeft - topRight + topLeft) >= threshold) {
+                    int bit = y * maskSize + x;
+                    mask[bit >>> 6] |= 1L << bit;
+                }
+                topLeft = topRight;
+                bottomLeft = bottomRight;
+            }
+        }
+    }
+
+    /**
+     * Adds up the scaled grayscale of a rectangle of the normalized image, from the summed-area table of
+     * the part that lies on the original image and the white of the rest.
+     *
+     * @param fromX The left column of the rectangle, inclusive.
+     * @param fromY The top row of the rectangle, inclusive.
+     * @param toX   The right column of the rectangle, exclusive.
+     * @param toY   The bottom row of the rectangle, exclusive.
+     * @return The total scaled grayscale of the rectangle.
+     */
+    private long sumGrayScale(int fromX, int fromY, int toX, int toY) {
+        int left = Math.max(fromX - xOffset, 0);
+        int right = Math.min(toX - xOffset, width);
+        int top = Math.max(fromY - yOffset, 0);
+        int bottom = Math.min(toY - yOffset, height);
+        long totalGrayScale = 0;
+        long originalPixels = 0;
+        if (left < right && top < bottom) {
+            int stride = width + 1;
+            int topRow = top * stride;
+            int bottomRow = bottom * stride;
+            totalGrayScale = grayScaleIntegral[bottomRow + right] - grayScaleIntegral[bottomRow + left] -
+                    grayScaleIntegral[topRow + right] + grayScaleIntegral[topRow + left];
+            originalPixels = (long) (right - left) * (bottom - top);
+        }
+        long paddingPixels = (long) (toX - fromX) * (toY - fromY) - originalPixels;
+        return totalGrayScale + paddingPixels * WHITE_SCALED_GRAY_SCALE;
+    }
+
+    /**
+     * Calculates the grayscale value of a pixel, scaled by GRAY_SCALE_FACTOR. This is a utility method used
+     * in brightness calculations.
+     * The grayscale value is determined using a weighted sum of the red, green, and blue components of the
+     * color. Keeping it as an integer lets the summed-area table add up millions of pixels exactly.
+     *
+     * @param pixel The packed RGB value of the pixel.
+     * @return The scaled grayscale value of the pixel.
+     */
+    private static long getScaledGrayScaleFromPixel(int pixel) {
+        return GrayScaleKernel.grayScale(pixel);
     }
 
 }
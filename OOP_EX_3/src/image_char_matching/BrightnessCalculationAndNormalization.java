@@ -7,102 +7,128 @@ import java.util.*;
  * representation.
  * This class supports determining characters with minimum, medium, and maximum brightness and normalizes
  * these values to facilitate consistent representation.
- * It employs a hashmap to track the original and normalized brightness values of characters and array
- * lists to manage characters at brightness extremes.
+ * The brightness of a character is the number of lit pixels in its glyph, so it can only take one of
+ * NUMBER_OF_PIXELS_IN_GLYPH + 1 levels. The class keeps, in primitive arrays, the level of every character
+ * (indexed by the character itself) and a bit set of the characters at every level. The minimum and maximum
+ * levels are maintained as characters come and go, and normalization is applied only when the brightness
+ * values are queried, so a change to the extremes never re-maps the stored characters.
  *
  * @author Yoav Barak
  */
 public class BrightnessCalculationAndNormalization {
     private static final int NUMBER_OF_PIXEL_IN_ROW = 16;
-    private static final String MID_CHAR = "Is mid char";
-    private static final String MIN_CHAR = "Is min char!";
-    private static final String MAX_CHAR = "Is max char!";
+    private static final int NUMBER_OF_PIXELS_IN_GLYPH = NUMBER_OF_PIXEL_IN_ROW * NUMBER_OF_PIXEL_IN_ROW;
+    private static final int NUMBER_OF_LEVELS = NUMBER_OF_PIXELS_IN_GLYPH + 1;
+    private static final int NOT_IN_CHARSET = -1;
 
-    private final HashMap<Character, Double> allLetterAndBrightness = new HashMap<>();
-    private HashMap<Character, Double> allLetterAndBrightnessNormal;
+    // The brightness level of every character, or NOT_IN_CHARSET
+    private final int[] levelOfLetter = new int[Character.MAX_VALUE + 1];
+    // The characters at every brightness level; null while no character has that level
+    private final BitSet[] lettersOfLevel = new BitSet[NUMBER_OF_LEVELS];
+    private final int[] numberOfLettersInLevel = new int[NUMBER_OF_LEVELS];
+    private int numberOfLetters = 0;
+    private int minLevel = NUMBER_OF_LEVELS;
+    private int maxLevel = NOT_IN_CHARSET;
 
     /**
-     * Retrieves the mapping of all characters to their respective brightness values.
-     * This method provides access to the raw brightness calculations for each character,
-     * allowing for further analysis or processing outside of the class.
-     *
-     * @return A HashMap<Character, Double> where each key is a character and each value is its calculated
-     * brightness.
-     */
-    public HashMap<Character, Double> getAllLetterAndBrightness() {
-        return allLetterAndBrightness;
-    }
-
-    private final ArrayList<Pair<Character, Double>> maxBrightnessLetter = new ArrayList<>();
-    private final ArrayList<Pair<Character, Double>> minBrightnessLetter = new ArrayList<>();
-
-    /**
-     * Retrieves the mapping of all characters to their respective normalized brightness values.
-     * This method offers access to the normalized brightness values of characters, where normalization
-     * adjusts the brightness values to a common scale, facilitating comparisons and further processing.
-     *
-     * @return A HashMap<Character, Double> containing the characters and their normalized brightness values.
-     * Each key in the HashMap represents a character, and the value is its normalized brightness.
-     */
-    public HashMap<Character, Double> getAllLetterAndBrightnessNormal() {
-        return allLetterAndBrightnessNormal;
-    }
-
-
-    /**
-     * Initializes a new instance of the BrightnessCalculationAndNormalization class.
-     * Sets up the initial conditions for the class by populating the minBrightnessLetter and
-     * maxBrightnessLetter lists
-     * with a default character and its artificially high and low brightness values, respectively.
-     * This constructor ensures that the class is ready to calculate and normalize the brightness of
-     * additional characters
-     * by providing baseline maximum and minimum brightness characters for comparison.
+     * Initializes a new instance of the BrightnessCalculationAndNormalization class, with no characters.
      */
     public BrightnessCalculationAndNormalization() {
-        this.minBrightnessLetter.add(new Pair<Character,
-                Double>('#', 999.0));
-        this.maxBrightnessLetter.add(new Pair<Character,
-                Double>('#', (double) -999));
+        Arrays.fill(this.levelOfLetter, NOT_IN_CHARSET);
     }
 
     /**
      * Calculates and stores the brightness for each character in the given character array.
      * Iterates through the provided array of characters, calculating the brightness for each character
-     * using the AddLetterAndBrightness method. This process involves determining the character's pixel
-     * density and updating internal data structures to reflect each character's brightness.
+     * using the AddLetterAndBrightness method. The glyphs that are not cached yet are rendered in parallel
+     * beforehand.
      *
      * @param charset An array of characters for which to calculate brightness values.
      */
     public void ArrayBrightnessCalculation(char[] charset) {
+        CharConverter.prefetch(charset);
         for (char letter : charset) {
             AddLetterAndBrightness(letter);
-
         }
     }
 
     /**
-     * Adds a character to the internal mapping with its calculated brightness value and updates the
-     * minimum and maximum
-     * brightness character lists if necessary. This method calculates the brightness of the provided
-     * character,
-     * stores the result in a mapping of characters to their brightness, and checks if this new entry should
-     * update the lists of characters with the minimum or maximum brightness values.
+     * Adds a character with its calculated brightness value, updating the minimum and maximum brightness
+     * levels if necessary.
      *
      * @param letter The character to add and calculate brightness for.
-     * @return A boolean indicating whether the minimum or maximum brightness character list was updated.
-     * Returns true if either the minimum or maximum brightness list was updated, false otherwise.
+     * @return true if the character was added, false if it was already stored.
      */
     public boolean AddLetterAndBrightness(char letter) {
-        Character character = letter;
-        Double brightness = CalculationBrightness(letter);
-        this.allLetterAndBrightness.put(character, brightness);
-        return UpdateMinMaxAddCase(character, brightness);
+        if (contains(letter)) {
+            return false;
+        }
+        int level = CountNumberOfTrue(CharConverter.convertToPackedMask(letter));
+        this.levelOfLetter[letter] = level;
+        if (this.lettersOfLevel[level] == null) {
+            this.lettersOfLevel[level] = new BitSet();
+        }
+        this.lettersOfLevel[level].set(letter);
+        this.numberOfLettersInLevel[level]++;
+        this.numberOfLetters++;
+        this.minLevel = Math.min(this.minLevel, level);
+        this.maxLevel = Math.max(this.maxLevel, level);
+        return true;
+    }
+
+    /**
+     * Removes a character, updating the minimum and maximum brightness levels if the character was the
+     * last one at one of them.
+     *
+     * @param letter The character to remove.
+     * @return true if the character was removed, false if it was not stored.
+     */
+    public boolean RemoveLetter(char letter) {
+        if (!contains(letter)) {
+            return false;
+        }
+        int level = this.levelOfLetter[letter];
+        this.levelOfLetter[letter] = NOT_IN_CHARSET;
+        this.lettersOfLevel[level].clear(letter);
+        this.numberOfLettersInLevel[level]--;
+        this.numberOfLetters--;
+        if (this.numberOfLetters == 0) {
+            this.minLevel = NUMBER_OF_LEVELS;
+            this.maxLevel = NOT_IN_CHARSET;
+        } else if (this.numberOfLettersInLevel[level] == 0) {
+            while (this.numberOfLettersInLevel[this.minLevel] == 0) {
+                this.minLevel++;
+            }
+            while (this.numberOfLettersInLevel[this.maxLevel] == 0) {
+                this.maxLevel--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a character is stored.
+     *
+     * @param letter The character to look for.
+     * @return true if the character is stored, false otherwise.
+     */
+    public boolean contains(char letter) {
+        return this.levelOfLetter[letter] != NOT_IN_CHARSET;
+    }
+
+    /**
+     * Checks whether no character is stored.
+     *
+     * @return true if there are no characters, false otherwise.
+     */
+    public boolean isEmpty() {
+        return this.numberOfLetters == 0;
     }
 
     /**
      * Calculates the brightness of a given character based on its pixel representation.
-     * This method converts the character into a 2D boolean array representing its pixel matrix,
-     * where each 'true' value indicates a pixel that contributes to the character's visual representation.
+     * This method takes the character's packed pixel mask from the glyph cache,
+     * where each set bit indicates a pixel that contributes to the character's visual representation.
      * The brightness is then calculated as the ratio of 'true' pixels to the total number of pixels in a row,
      * effectively measuring the density of the character's representation.
      *
@@ -113,142 +139,128 @@ public class BrightnessCalculationAndNormalization {
      */
 
     public Double CalculationBrightness(char letter) {
-        boolean[][] boolArray = CharConverter.convertToBoolArray(letter);
-        int numberOfTrue = CountNumberOfTrue(boolArray);
+        long[] mask = CharConverter.convertToPackedMask(letter);
+        int numberOfTrue = CountNumberOfTrue(mask);
         return (double) numberOfTrue / NUMBER_OF_PIXEL_IN_ROW;
     }
 
+    /**
+     * Normalizes a brightness level against the current minimum and maximum levels, so the dimmest stored
+     * character gets 0 and the brightest gets 1.
+     *
+     * @param level A brightness level, as a number of lit pixels.
+     * @return The normalized brightness of the level.
+     */
+    private double NormalizeLevel(int level) {
+        double minBrightness = (double) this.minLevel / NUMBER_OF_PIXEL_IN_ROW;
+        double maxBrightness = (double) this.maxLevel / NUMBER_OF_PIXEL_IN_ROW;
+        return ((double) level / NUMBER_OF_PIXEL_IN_ROW - minBrightness) / (maxBrightness - minBrightness);
+    }
 
     /**
-     * Updates the lists of characters with the minimum and maximum brightness based on the given
-     * character's brightness.
-     * If the character's brightness matches or sets a new minimum or maximum, the respective list is updated.
-     * This method ensures that the minimum and maximum brightness values are accurately reflected in the
-     * class state.
+     * Returns the distinct normalized brightness values of the stored characters, in increasing order.
      *
-     * @param character  The character being added or updated.
-     * @param brightness The brightness value of the character.
-     * @return A boolean indicating whether an update was made to the minimum or maximum brightness lists.
-     * Returns true if the minimum or maximum brightness was updated, false otherwise.
+     * @return The sorted normalized brightness values.
      */
-    private boolean UpdateMinMaxAddCase(Character character, Double brightness) {
-        if (Objects.equals(minBrightnessLetter.getFirst().getBrightness(), brightness)) {
-            minBrightnessLetter.add(new Pair<>(character, brightness));
-        }
-        if (minBrightnessLetter.getFirst().getBrightness() > brightness) {
-            minBrightnessLetter.clear();
-            minBrightnessLetter.add(new Pair<>(character, brightness));
-            return true;
+    public double[] getSortedBrightnessNormal() {
+        double[] sortedBrightness = new double[countLevels()];
+        int index = 0;
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            if (this.numberOfLettersInLevel[level] > 0) {
+                sortedBrightness[index++] = NormalizeLevel(level);
+            }
         }
+        return sortedBrightness;
+    }
 
-        if (Objects.equals(maxBrightnessLetter.getFirst().getBrightness(), brightness)) {
-            maxBrightnessLetter.add(new Pair<>(character, brightness));
-        }
-        if (maxBrightnessLetter.getFirst().getBrightness() < brightness) {
-            maxBrightnessLetter.clear();
-            maxBrightnessLetter.add(new Pair<>(character, brightness));
-            return true;
+    /**
+     * Returns, for every value returned by getSortedBrightnessNormal, the smallest character with that
+     * brightness.
+     *
+     * @return The smallest character of each brightness value, in increasing order of brightness.
+     */
+    public char[] getSmallestLetterOfEachBrightness() {
+        char[] smallestLetters = new char[countLevels()];
+        int index = 0;
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            if (this.numberOfLettersInLevel[level] > 0) {
+                smallestLetters[index++] = (char) this.lettersOfLevel[level].nextSetBit(0);
+            }
         }
-        return false;
+        return smallestLetters;
     }
 
     /**
-     * Updates the minimum and maximum brightness lists by removing entries with the specified brightness
-     * value.
-     * This method iterates through the lists of characters with the minimum and maximum brightness,
-     * removing any that match the given brightness value. If removing an entry results in an empty list,
-     * the output is adjusted to indicate whether the minimum or maximum brightness character has been
-     * removed.
+     * Builds a mapping of all the stored characters to their normalized brightness values. The map is a
+     * fresh copy, meant for consumers that need boxed values, such as the reference TreeMap lookup.
      *
-     * @param brightness The brightness value for which matching characters should be removed from the
-     *                   min/max lists.
-     * @return A String indicating the result of the operation:
-     * - Returns {@link #MID_CHAR} if neither the minimum nor maximum brightness list is emptied.
-     * - Returns {@link #MIN_CHAR} if the removal empties the minimum brightness list.
-     * - Returns {@link #MAX_CHAR} if the removal empties the maximum brightness list.
+     * @return A HashMap<Character, Double> containing the characters and their normalized brightness values.
      */
-    public String UpdateMinMaxRemoveCase(Double brightness) {
-        String output = MID_CHAR;
-        for (Pair<Character, Double> currPair : minBrightnessLetter) {
-            if (Objects.equals(currPair.getBrightness(), brightness)) {
-                minBrightnessLetter.remove(currPair);
-                if (minBrightnessLetter.isEmpty()) {
-                    output = MIN_CHAR;
-                }
+    public HashMap<Character, Double> getAllLetterAndBrightnessNormal() {
+        HashMap<Character, Double> allLetterAndBrightnessNormal = new HashMap<>();
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            if (this.numberOfLettersInLevel[level] == 0) {
+                continue;
             }
-        }
-        for (Pair<Character, Double> currPair : maxBrightnessLetter) {
-            if (Objects.equals(currPair.getBrightness(), brightness)) {
-                maxBrightnessLetter.remove(currPair);
-                if (maxBrightnessLetter.isEmpty()) {
-                    output = MAX_CHAR;
-                }
+            Double brightness = NormalizeLevel(level);
+            BitSet letters = this.lettersOfLevel[level];
+            for (int letter = letters.nextSetBit(0); letter >= 0; letter = letters.nextSetBit(letter + 1)) {
+                allLetterAndBrightnessNormal.put((char) letter, brightness);
             }
         }
-        return output;
+        return allLetterAndBrightnessNormal;
     }
 
     /**
-     * Normalizes the brightness values of all characters stored in the class.
-     * This method recalculates the brightness values to ensure they are scaled relative to the characters
-     * with the minimum
-     * and maximum brightness. The normalization process adjusts each character's brightness so that the
-     * range spans uniformly
-     * from the character with the lowest brightness to the character with the highest brightness.
-     * The result is stored in a separate hashmap, preserving the original brightness values for reference.
+     * Returns all the stored characters.
+     *
+     * @return The characters, in increasing order.
      */
-    public void NormalizeAllLetterAndBrightness() {
-        this.allLetterAndBrightnessNormal = new HashMap<>();
-        for (Map.Entry<Character, Double> currPair : this.allLetterAndBrightness.entrySet()) {
-            NormalizeLetterAndBrightness(currPair);
+    public char[] getLetters() {
+        char[] letters = new char[this.numberOfLetters];
+        int index = 0;
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            if (this.numberOfLettersInLevel[level] == 0) {
+                continue;
+            }
+            BitSet lettersOfThisLevel = this.lettersOfLevel[level];
+            for (int letter = lettersOfThisLevel.nextSetBit(0); letter >= 0;
+                 letter = lettersOfThisLevel.nextSetBit(letter + 1)) {
+                letters[index++] = (char) letter;
+            }
         }
+        Arrays.sort(letters);
+        return letters;
     }
 
     /**
-     * Normalizes the brightness of a specific character based on the minimum and maximum brightness values
-     * recorded.
-     * This method takes a character and its current brightness value, recalculates the brightness to fit
-     * within the normalized
-     * scale established by the minimum and maximum brightness characters, and updates the normalized
-     * brightness mapping.
+     * Counts the brightness levels that hold at least one character.
      *
-     * @param currPair A Map.Entry<Character, Double> representing the character and its original
-     *                 brightness value.
-     * @return A Pair<Character, Double> containing the character and its new, normalized brightness value.
-     * This pair reflects the adjusted brightness value that ensures a uniform distribution across
-     * the set range from the minimum to the maximum brightness values observed.
+     * @return The number of distinct brightness levels in use.
      */
-    public Pair<Character, Double> NormalizeLetterAndBrightness(Map.Entry<Character, Double> currPair) {
-        Double newCharBrightness =
-                (currPair.getValue() - this.minBrightnessLetter.getFirst().getBrightness()) /
-                        (this.maxBrightnessLetter.getFirst().getBrightness() -
-                                this.minBrightnessLetter.getFirst().getBrightness());
-        Pair<Character, Double> characterDoublePair = new Pair<>(currPair.getKey(), newCharBrightness);
-        this.allLetterAndBrightnessNormal.put(characterDoublePair.getLetter(),
-                characterDoublePair.getBrightness());
-        return characterDoublePair;
+    private int countLevels() {
+        int levels = 0;
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            if (this.numberOfLettersInLevel[level] > 0) {
+                levels++;
+            }
+        }
+        return levels;
     }
 
     /**
-     * Counts the number of true values in a 2D boolean array representing a character's pixel matrix.
-     * This method iterates over each element in the boolean array, counting how many times a true value
-     * occurs.
-     * The count of true values is indicative of the character's visual density or brightness, as each true
-     * value
+     * Counts the number of set bits in the packed pixel mask of a character.
+     * The count of set bits is indicative of the character's visual density or brightness, as each set bit
      * represents an 'active' or 'lit' pixel in the character's representation.
      *
-     * @param boolArray A 2D boolean array representing the pixel matrix of a character.
-     * @return An int representing the number of true values found in the array, which correlates to the
+     * @param mask The packed pixel mask of a character.
+     * @return An int representing the number of set bits in the mask, which correlates to the
      * character's brightness.
      */
-    private static int CountNumberOfTrue(boolean[][] boolArray) {
-        short numOfTrue = 0;
-        for (short row = 0; row < NUMBER_OF_PIXEL_IN_ROW; ++row) {
-            for (short col = 0; col < NUMBER_OF_PIXEL_IN_ROW; ++col) {
-                if (boolArray[row][col]) {
-                    ++numOfTrue;
-                }
-            }
+    private static int CountNumberOfTrue(long[] mask) {
+        int numOfTrue = 0;
+        for (long word : mask) {
+            numOfTrue += Long.bitCount(word);
         }
         return numOfTrue;
     }
@@ -0,0 +1,143 @@
+package image_char_matching;
+
+import java.util.ArrayList;
+
+/**
+ * A compiled, read-only form of a charset that answers brightness queries with a single array access.
+ * The range [0, 1) of image brightness is split into equal buckets, and every bucket in which all brightness
+ * values lead to the same character stores that character directly, with the
+ * "closest brightness, then smallest character" rules already applied. The few buckets that contain a
+ * boundary between two characters, and brightness values outside of [0, 1), fall back to a binary search
+ * over the sorted brightness keys, which follows exactly the same rules as the TreeMap lookup.
+ * Since the chosen key never moves backwards as the brightness grows, a bucket whose two ends agree gives
+ * the same character for every brightness inside it.
+ */
+public class BrightnessLookupTable {
+    // A power of two, so bucket boundaries and bucket indices are computed without rounding errors
+    private static final int NUMBER_OF_BUCKETS = 4096;
+    private static final String TABLE_MISMATCH =
+            "Lookup table disagrees with the tree for brightness %s: the table gives '%c', the tree '%c'";
+
+    private final double[] sortedBrightness;
+    private final char[] smallestChars;
+    private final char[] buckets;
+    private final boolean[] mixedBuckets;
+
+    /**
+     * Compiles the lookup table of a charset.
+     *
+     * @param sortedBrightness The distinct normalized brightness values of the charset, in increasing order.
+     *                         Must not be empty.
+     * @param smallestChars    The smallest character with each of these brightness values.
+     */
+    public BrightnessLookupTable(double[] sortedBrightness, char[] smallestChars) {
+        this.sortedBrightness = sortedBrightness;
+        this.smallestChars = smallestChars;
+        this.buckets = new char[NUMBER_OF_BUCKETS];
+        this.mixedBuckets = new boolean[NUMBER_OF_BUCKETS];
+        for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+            int first = closestIndex((double) bucket / NUMBER_OF_BUCKETS);
+            int last = closestIndex(Math.nextDown((double) (bucket + 1) / NUMBER_OF_BUCKETS));
+            this.buckets[bucket] = this.smallestChars[first];
+            this.mixedBuckets[bucket] = first != last;
+        }
+    }
+
+    /**
+     * Finds the character whose normalized brightness is the closest to the given brightness. When
+     * several characters share that brightness, the one with the smallest value is returned.
+     *
+     * @param brightness The brightness value to match against.
+     * @return The matching character.
+     */
+    public char getCharByImageBrightness(double brightness) {
+        if (brightness >= 0 && brightness < 1) {
+            int bucket = (int) (brightness * NUMBER_OF_BUCKETS);
+            if (!mixedBuckets[bucket]) {
+                return buckets[bucket];
+            }
+        }
+        return smallestChars[closestIndex(brightness)];
+    }
+
+    /**
+     * Checks that every bucket stored directly in the table agrees, at both of its ends, with the given
+     * TreeMap lookup. Together with the monotonicity of the lookup this proves that the table and the tree
+     * give the same character for every brightness.
+     *
+     * @param takeCareOnTreeMap The tree the table was compiled from.
+     * @throws IllegalStateException If the table and the tree disagree at the end of some bucket.
+     */
+    public void checkAgreesWith(TakeCareOnTreeMap takeCareOnTreeMap) {
+        for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+            if (mixedBuckets[bucket]) {
+                continue;
+            }
+            double first = (double) bucket / NUMBER_OF_BUCKETS;
+            double last = Math.nextDown((double) (bucket + 1) / NUMBER_OF_BUCKETS);
+            checkAgreement(first, buckets[bucket],
+                    smallestChar(takeCareOnTreeMap.FindArrayCharByBrightness(first)));
+            checkAgreement(last, buckets[bucket],
+                    smallestChar(takeCareOnTreeMap.FindArrayCharByBrightness(last)));
+        }
+    }
+
+    /**
+     * Checks that the table and the tree matched the same character to a brightness.
+     *
+     * @param brightness The brightness that was matched.
+     * @param tableChar  The character the table matched.
+     * @param treeChar   The character the tree matched.
+     * @throws IllegalStateException If the characters differ.
+     */
+    static void checkAgreement(double brightness, char tableChar, char treeChar) {
+        if (tableChar != treeChar) {
+            throw new IllegalStateException(String.format(TABLE_MISMATCH, brightness, tableChar, treeChar));
+        }
+    }
+
+    /**
+     * Finds the index of the key closest to the given brightness, the same way
+     * TakeCareOnTreeMap.FindArrayCharByBrightness does: the floor key wins only when it is strictly
+     * closer than the ceiling key. Keys are ordered like Double.compare orders them.
+     *
+     * @param brightness The target brightness value.
+     * @return The index of the closest key in sortedBrightness.
+     */
+    private int closestIndex(double brightness) {
+        int low = 0;
+        int high = sortedBrightness.length - 1;
+        // Find the first key that is not smaller than the brightness, which is the ceiling key
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(sortedBrightness[middle], brightness) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int ceiling = low;
+        int floor = ceiling < sortedBrightness.length &&
+                Double.compare(sortedBrightness[ceiling], brightness) == 0 ? ceiling : ceiling - 1;
+        double diffFloor = floor >= 0 ? Math.abs(brightness - sortedBrightness[floor]) : Double.MAX_VALUE;
+        double diffCeiling = ceiling < sortedBrightness.length ?
+                Math.abs(brightness - sortedBrightness[ceiling]) : Double.MAX_VALUE;
+        return diffFloor < diffCeiling ? floor : ceiling;
+    }
+
+    /**
+     * Finds the character with the smallest value in a list.
+     *
+     * @param characters A non-empty list of characters.
+     * @return The smallest character in the list.
+     */
+    static char smallestChar(ArrayList<Character> characters) {
+        char smallestChar = characters.getFirst();
+        for (char ch : characters) {
+            if (ch < smallestChar) {
+                smallestChar = ch;
+            }
+        }
+        return smallestChar;
+    }
+}
@@ -22,18 +22,74 @@ public class CharConverter {
      * Renders a given character, according to how it looks in the font specified in the
      * constructor, to a square black&white image (2D array of booleans),
      * whose dimension in pixels is specified.
+     * The glyph is taken from the shared GlyphCache, so each character is rendered only once.
      */
     public static boolean[][] convertToBoolArray(char c) {
-        BufferedImage img = getBufferedImage(c, FONT_NAME, DEFAULT_PIXEL_RESOLUTION);
+        long[] mask = convertToPackedMask(c);
         boolean[][] matrix = new boolean[DEFAULT_PIXEL_RESOLUTION][DEFAULT_PIXEL_RESOLUTION];
         for (int y = 0; y < DEFAULT_PIXEL_RESOLUTION; y++) {
             for (int x = 0; x < DEFAULT_PIXEL_RESOLUTION; x++) {
-                matrix[y][x] = img.getRGB(x, y) == 0; //is the color black
+                int bit = y * DEFAULT_PIXEL_RESOLUTION + x;
+                matrix[y][x] = (mask[bit >>> 6] & (1L << bit)) != 0;
             }
         }
         return matrix;
     }
 
+    /**
+     * Returns the same black&white image as convertToBoolArray, packed into bits: pixel (y, x) is bit
+     * (y * DEFAULT_PIXEL_RESOLUTION + x) of the mask, counting from the lowest bit of the first long.
+     * The glyph is taken from the shared GlyphCache, and the returned array must not be modified.
+     *
+     * @param c The character to render.
+     * @return The packed mask of the character.
+     */
+    public static long[] convertToPackedMask(char c) {
+        return GlyphCache.getInstance().getMask(FONT_NAME, DEFAULT_PIXEL_RESOLUTION, c);
+    }
+
+    /**
+     * Makes sure the glyphs of all the given characters are in the shared GlyphCache, rendering the
+     * missing ones in parallel.
+     *
+     * @param chars The characters that are about to be used.
+     */
+    public static void prefetch(char[] chars) {
+        GlyphCache.getInstance().fill(FONT_NAME, DEFAULT_PIXEL_RESOLUTION, chars);
+    }
+
+    /**
+     * Returns the number of longs needed to hold the packed mask of a glyph.
+     *
+     * @param pixelsPerRow The number of pixels in each row and column of the glyph.
+     * @return The length of the packed mask.
+     */
+    public static int wordsPerMask(int pixelsPerRow) {
+        return (pixelsPerRow * pixelsPerRow + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * Renders a character in the given font into a packed mask, without using the cache.
+     *
+     * @param c            The character to render.
+     * @param fontName     The name of the font.
+     * @param pixelsPerRow The number of pixels in each row and column of the glyph.
+     * @return The packed mask of the character, as described in convertToPackedMask.
+     */
+    static long[] renderPackedMask(char c, String fontName, int pixelsPerRow) {
+        BufferedImage img = getBufferedImage(c, fontName, pixelsPerRow);
+        long[] mask = new long[wordsPerMask(pixelsPerRow)];
+        for (int y = 0; y < pixelsPerRow; y++) {
+            for (int x = 0; x < pixelsPerRow; x++) {
+                if (img.getRGB(x, y) == 0) { //is the color black
+                    int bit = y * pixelsPerRow + x;
+                    mask[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        return mask;
+    }
+
     private static BufferedImage getBufferedImage(char c, String fontName, int pixelsPerRow) {
         String charStr = Character.toString(c);
         Font font = new Font(fontName, Font.PLAIN, pixelsPerRow);
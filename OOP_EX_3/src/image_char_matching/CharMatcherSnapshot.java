@@ -0,0 +1,109 @@
+package image_char_matching;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable view of a SubImgCharMatcher at one version of its charset: the compiled lookup table and,
+ * while shapes are matched, the glyph masks. The matcher builds a new snapshot after every edit and
+ * publishes it atomically, so a render that captures a snapshot keeps matching against the same charset
+ * for its whole run, without locking, while the charset is edited. Snapshots are never modified, so any
+ * number of threads may share one.
+ */
+public final class CharMatcherSnapshot {
+    private static final String EMPTY_CHARSET = "Cannot match a brightness with an empty charset";
+    private static final String NO_SHAPES = "Cannot match a shape unless shape matching is on";
+
+    private final long version;
+    private final BrightnessLookupTable lookupTable; // null for an empty charset
+    private final TakeCareOnTreeMap takeCareOnTreeMap; // Only built while the lookup table is verified
+    private final boolean shapeMatching;
+    private final ShapeMatcher shapeMatcher; // Only built while shapes are matched
+
+    /**
+     * Constructs a snapshot from structures that are no longer modified by anyone.
+     *
+     * @param version           The version of the charset.
+     * @param lookupTable       The lookup table of the charset, or null if it is empty.
+     * @param takeCareOnTreeMap The reference tree to verify every match against, or null.
+     * @param shapeMatching     true if shapes are matched instead of brightness values.
+     * @param shapeMatcher      The glyph masks of the charset, or null unless shapes are matched.
+     */
+    CharMatcherSnapshot(long version, BrightnessLookupTable lookupTable, TakeCareOnTreeMap takeCareOnTreeMap,
+                        boolean shapeMatching, ShapeMatcher shapeMatcher) {
+        this.version = version;
+        this.lookupTable = lookupTable;
+        this.takeCareOnTreeMap = takeCareOnTreeMap;
+        this.shapeMatching = shapeMatching;
+        this.shapeMatcher = shapeMatcher;
+    }
+
+    /**
+     * Returns the version of the charset this snapshot was taken at; see SubImgCharMatcher.getVersion.
+     *
+     * @return The charset version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether shapes are matched instead of brightness values.
+     *
+     * @return true if shape matching is on.
+     */
+    public boolean isShapeMatching() {
+        return shapeMatching;
+    }
+
+    /**
+     * Returns the number of cells in each row and column of the masks given to getCharByShape.
+     *
+     * @return The size of the glyph masks.
+     */
+    public int getShapeMaskSize() {
+        return CharConverter.DEFAULT_PIXEL_RESOLUTION;
+    }
+
+    /**
+     * Matches a character to a given image brightness; see SubImgCharMatcher.getCharByImageBrightness.
+     *
+     * @param brightness The brightness value to match against.
+     * @return The character with the closest brightness to the given value.
+     */
+    public char getCharByImageBrightness(double brightness) {
+        if (this.lookupTable == null) {
+            throw new IllegalStateException(EMPTY_CHARSET);
+        }
+        char matchedChar = this.lookupTable.getCharByImageBrightness(brightness);
+        if (this.takeCareOnTreeMap != null) {
+            BrightnessLookupTable.checkAgreement(brightness, matchedChar, getCharFromTree(brightness));
+        }
+        return matchedChar;
+    }
+
+    /**
+     * Matches a character to the shape of a sub-image; see SubImgCharMatcher.getCharByShape.
+     *
+     * @param mask The packed mask of the sub-image.
+     * @return The character with the closest shape.
+     */
+    public char getCharByShape(long[] mask) {
+        if (this.shapeMatcher == null) {
+            throw new IllegalStateException(this.shapeMatching ? EMPTY_CHARSET : NO_SHAPES);
+        }
+        return this.shapeMatcher.getCharByShape(mask);
+    }
+
+    /**
+     * Matches a character to a given image brightness by looking it up in the reference tree, choosing the
+     * character with the smallest value among those with the closest brightness.
+     *
+     * @param brightness The brightness value to match against.
+     * @return The character with the closest brightness to the given value.
+     */
+    private char getCharFromTree(double brightness) {
+        ArrayList<Character> arrayCharByBrightness =
+                this.takeCareOnTreeMap.FindArrayCharByBrightness(brightness);
+        return BrightnessLookupTable.smallestChar(arrayCharByBrightness);
+    }
+}
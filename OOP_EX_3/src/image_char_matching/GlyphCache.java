@@ -0,0 +1,283 @@
+package image_char_matching;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * A cache of rendered glyphs, keyed by font name, glyph resolution and character. Every glyph is kept as
+ * the packed bit mask produced by CharConverter, so its brightness is a population count and its shape is
+ * available for comparison without rendering it again.
+ * The cache is loaded from a small binary file the first time it is used, and the file is written only
+ * when save is called. The first time a font is used at some resolution, all printable ASCII characters
+ * are rendered for it in parallel.
+ * The file is ".ascii_art_glyph_cache.bin" in the user's home directory, unless the system property
+ * "image_char_matching.glyphCache" names another path.
+ */
+public class GlyphCache {
+    private static final String PATH_PROPERTY = "image_char_matching.glyphCache";
+    private static final String DEFAULT_FILE_NAME = ".ascii_art_glyph_cache.bin";
+    private static final int MAGIC = 0x474C5946; // "GLYF"
+    private static final int VERSION = 1;
+    private static final char FIRST_PRINTABLE_CHAR = 32;
+    private static final char LAST_PRINTABLE_CHAR = 126;
+    private static final String KEY_SEPARATOR = "|";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_RESOLUTION = 1024;
+    private static final String CORRUPT_FILE = "Corrupt glyph cache";
+
+    private static GlyphCache instance = null;
+
+    private final Path path;
+    private final Map<String, FontGlyphs> fonts = new ConcurrentHashMap<>();
+    // Counts the glyphs rendered since the cache was created, so a save knows whether it is still current
+    private final AtomicLong changes = new AtomicLong();
+    private long savedChanges = 0; // The value of changes that the file holds; guarded by this
+
+    /**
+     * The glyphs of one font at one resolution.
+     */
+    private static class FontGlyphs {
+        private final String fontName;
+        private final int resolution;
+        private final Map<Character, long[]> masks = new ConcurrentHashMap<>();
+
+        FontGlyphs(String fontName, int resolution) {
+            this.fontName = fontName;
+            this.resolution = resolution;
+        }
+    }
+
+    /**
+     * Creates a cache backed by the given file, loading whatever glyphs the file already holds.
+     *
+     * @param path The file the cache is loaded from and saved to.
+     */
+    public GlyphCache(Path path) {
+        this.path = path;
+        load();
+    }
+
+    /**
+     * Returns the cache shared by the whole program, loading it on first use.
+     *
+     * @return The shared glyph cache.
+     */
+    public static synchronized GlyphCache getInstance() {
+        if (instance == null) {
+            String fileName = System.getProperty(PATH_PROPERTY);
+            instance = new GlyphCache(fileName != null ? Paths.get(fileName) :
+                    Paths.get(System.getProperty("user.home"), DEFAULT_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the packed mask of a glyph, rendering it if it is not cached yet. The returned array must not
+     * be modified.
+     *
+     * @param fontName   The name of the font.
+     * @param resolution The number of pixels in each row and column of the glyph.
+     * @param c          The character.
+     * @return The packed mask of the glyph, as produced by CharConverter.renderPackedMask.
+     */
+    public long[] getMask(String fontName, int resolution, char c) {
+        FontGlyphs glyphs = getFontGlyphs(fontName, resolution);
+        long[] mask = glyphs.masks.get(c);
+        if (mask == null) {
+            mask = glyphs.masks.computeIfAbsent(c,
+                    key -> CharConverter.renderPackedMask(key, fontName, resolution));
+            this.changes.incrementAndGet();
+        }
+        return mask;
+    }
+
+    /**
+     * Renders, in parallel, every given character that is not cached yet.
+     *
+     * @param fontName   The name of the font.
+     * @param resolution The number of pixels in each row and column of the glyphs.
+     * @param chars      The characters to render.
+     */
+    public void fill(String fontName, int resolution, char[] chars) {
+        FontGlyphs glyphs = getFontGlyphs(fontName, resolution);
+        fillMissing(glyphs, IntStream.range(0, chars.length).map(i -> chars[i]));
+    }
+
+    /**
+     * Writes the cache to its file if any glyph was rendered since it was loaded or last saved successfully.
+     * The glyphs are written to a temporary file that then replaces the cache file, atomically where the
+     * file system allows it, so an interrupted save never leaves a corrupt cache behind. A failed save
+     * removes its temporary file and is retried by the next one.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        // Read before the glyphs are copied, so a glyph rendered meanwhile is saved again next time
+        long changesToSave = this.changes.get();
+        if (changesToSave == this.savedChanges) {
+            return;
+        }
+        Path parent = this.path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Paths.get(this.path + TEMP_SUFFIX);
+        boolean moved = false;
+        try {
+            write(temp);
+            replaceWith(temp);
+            moved = true;
+        } finally {
+            if (!moved) {
+                deleteQuietly(temp);
+            }
+        }
+        // Only now is the file up to date; a save that failed before this point is retried by the next one
+        this.savedChanges = changesToSave;
+    }
+
+    /**
+     * Saves the cache, logging instead of failing if the file cannot be written; the glyphs stay
+     * available in memory either way, and are rendered again by the next run if they were not saved.
+     */
+    public void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to save glyph cache to \"%s\"", this.path));
+        }
+    }
+
+    /**
+     * Writes every cached glyph to a file.
+     */
+    private void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.fonts.size());
+            for (FontGlyphs glyphs : this.fonts.values()) {
+                out.writeUTF(glyphs.fontName);
+                out.writeInt(glyphs.resolution);
+                Map<Character, long[]> masks = Map.copyOf(glyphs.masks);
+                out.writeInt(masks.size());
+                for (Map.Entry<Character, long[]> entry : masks.entrySet()) {
+                    out.writeChar(entry.getKey());
+                    for (long word : entry.getValue()) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a written file over the cache file, falling back to a plain move where an atomic one is not
+     * supported.
+     */
+    private void replaceWith(Path temp) throws IOException {
+        try {
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to delete \"%s\"", file));
+        }
+    }
+
+    /**
+     * Returns the glyphs of a font, filling the printable ASCII characters in parallel the first time the
+     * font is used at this resolution.
+     *
+     * @param fontName   The name of the font.
+     * @param resolution The number of pixels in each row and column of the glyphs.
+     * @return The glyphs of the font.
+     */
+    private FontGlyphs getFontGlyphs(String fontName, int resolution) {
+        String key = fontName + KEY_SEPARATOR + resolution;
+        FontGlyphs glyphs = this.fonts.get(key);
+        if (glyphs != null) {
+            return glyphs;
+        }
+        synchronized (this) {
+            glyphs = this.fonts.get(key);
+            if (glyphs == null) {
+                glyphs = new FontGlyphs(fontName, resolution);
+                fillMissing(glyphs, IntStream.rangeClosed(FIRST_PRINTABLE_CHAR, LAST_PRINTABLE_CHAR));
+                this.fonts.put(key, glyphs);
+            }
+            return glyphs;
+        }
+    }
+
+    /**
+     * Renders, in parallel, the characters of the stream that the given glyphs do not hold yet.
+     *
+     * @param glyphs The glyphs to add to.
+     * @param chars  The characters to render.
+     */
+    private void fillMissing(FontGlyphs glyphs, IntStream chars) {
+        chars.filter(c -> !glyphs.masks.containsKey((char) c)).parallel().forEach(c -> {
+            glyphs.masks.put((char) c, CharConverter.renderPackedMask((char) c, glyphs.fontName,
+                    glyphs.resolution));
+            this.changes.incrementAndGet();
+        });
+    }
+
+    /**
+     * Loads the glyphs held by the cache file. A missing file leaves the cache empty; a corrupt or
+     * outdated one is ignored and will be overwritten by the next save.
+     */
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(this.path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int fontCount = in.readInt();
+            for (int i = 0; i < fontCount; i++) {
+                FontGlyphs glyphs = new FontGlyphs(in.readUTF(), in.readInt());
+                if (glyphs.resolution <= 0 || glyphs.resolution > MAX_RESOLUTION) {
+                    throw new IOException(CORRUPT_FILE);
+                }
+                int words = CharConverter.wordsPerMask(glyphs.resolution);
+                int glyphCount = in.readInt();
+                for (int j = 0; j < glyphCount; j++) {
+                    char c = in.readChar();
+                    long[] mask = new long[words];
+                    for (int w = 0; w < words; w++) {
+                        mask[w] = in.readLong();
+                    }
+                    glyphs.masks.put(c, mask);
+                }
+                this.fonts.put(glyphs.fontName + KEY_SEPARATOR + glyphs.resolution, glyphs);
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            this.fonts.clear();
+            Logger.getGlobal().warning(String.format("Ignoring unreadable glyph cache \"%s\"", this.path));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package image_char_matching;
+
+import java.util.Arrays;
+
+/**
+ * Matches the shape of a sub-image to the glyph that looks the most like it. Both are packed bit masks in
+ * the layout of CharConverter.convertToPackedMask, so the difference between them is the number of bits
+ * set in their exclusive or, counted a whole long at a time. The masks of the charset are kept side by
+ * side in a single array, sorted by the number of bits they set. Two masks differ in at least as many bits
+ * as their bit counts differ, so a match starts from the glyphs with the bit count of the sub-image and
+ * works outwards, and stops as soon as no glyph left can be closer than the best one found.
+ */
+class ShapeMatcher {
+    private final char[] chars; // In increasing order of bit count, then of character
+    private final int[] bitCounts;
+    private final long[] masks; // The mask of chars[i] starts at i * words
+    private final int words;
+
+    /**
+     * Constructs a matcher for a charset, taking the glyphs from the glyph cache.
+     *
+     * @param chars The characters of the charset; must not be empty.
+     */
+    ShapeMatcher(char[] chars) {
+        this.words = CharConverter.wordsPerMask(CharConverter.DEFAULT_PIXEL_RESOLUTION);
+        long[] sortKeys = new long[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            sortKeys[i] = (long) bitCount(CharConverter.convertToPackedMask(chars[i])) << Character.SIZE |
+                    chars[i];
+        }
+        Arrays.sort(sortKeys);
+        this.chars = new char[chars.length];
+        this.bitCounts = new int[chars.length];
+        this.masks = new long[chars.length * this.words];
+        for (int i = 0; i < chars.length; i++) {
+            this.chars[i] = (char) sortKeys[i];
+            this.bitCounts[i] = (int) (sortKeys[i] >>> Character.SIZE);
+            System.arraycopy(CharConverter.convertToPackedMask(this.chars[i]), 0, this.masks, i * this.words,
+                    this.words);
+        }
+    }
+
+    /**
+     * Finds the glyph with the fewest pixels that differ from a mask. Of several equally close glyphs, the
+     * smallest character is chosen, as brightness matching does.
+     *
+     * @param mask The packed mask of a sub-image.
+     * @return The character whose glyph is the closest to the mask.
+     */
+    char getCharByShape(long[] mask) {
+        int maskBitCount = bitCount(mask);
+        int above = firstWithBitCount(maskBitCount);
+        int below = above - 1;
+        int bestDistance = Integer.MAX_VALUE;
+        char bestChar = Character.MAX_VALUE;
+        while (true) {
+            int gapAbove = above < this.chars.length ? this.bitCounts[above] - maskBitCount :
+                    Integer.MAX_VALUE;
+            int gapBelow = below >= 0 ? maskBitCount - this.bitCounts[below] : Integer.MAX_VALUE;
+            int glyph;
+            if (gapAbove <= gapBelow) {
+                if (gapAbove > bestDistance) {
+                    return bestChar;
+                }
+                glyph = above++;
+            } else {
+                if (gapBelow > bestDistance) {
+                    return bestChar;
+                }
+                glyph = below--;
+            }
+            int distance = 0;
+            for (int w = 0, base = glyph * this.words; w < this.words; w++) {
+                distance += Long.bitCount(this.masks[base + w] ^ mask[w]);
+            }
+            if (distance < bestDistance || (distance == bestDistance && this.chars[glyph] < bestChar)) {
+                bestDistance = distance;
+                bestChar = this.chars[glyph];
+            }
+        }
+    }
+
+    /**
+     * Finds the first glyph that sets at least the given number of bits.
+     *
+     * @return The index of the glyph, or the number of glyphs if there is none.
+     */
+    private int firstWithBitCount(int bits) {
+        int low = 0;
+        int high = this.bitCounts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.bitCounts[middle] < bits) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int bitCount(long[] mask) {
+        int bits = 0;
+        for (long word : mask) {
+            bits += Long.bitCount(word);
+        }
+        return bits;
+    }
+}
@@ -1,26 +1,33 @@
 package image_char_matching;
 
-import java.util.ArrayList;
-import java.util.AbstractMap;
-
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * A class designed for matching characters to sub-images based on brightness.
  * Utilizes BrightnessCalculationAndNormalization for calculating and normalizing brightness values of
  * characters,
- * and TakeCareOnTreeMap for organizing characters by their brightness levels. This allows for efficient
- * matching
+ * and compiles its sorted brightness levels into a BrightnessLookupTable whenever the charset changes, so
+ * matching a brightness is a single array access. This allows for efficient matching
  * of characters to specific brightness levels within images.
+ * Setting the system property "image_char_matching.verifyLookupTable" to true also builds the reference
+ * TakeCareOnTreeMap for every charset, checks every table against it, and compares every match with the
+ * tree lookup.
+ * Alternatively, the matcher can match the shape of a sub-image, given as a packed bit mask, to the glyph
+ * that differs from it in the fewest pixels; see ShapeMatcher.
+ * Every edit builds a new immutable CharMatcherSnapshot and publishes it atomically. The matching methods
+ * read the current snapshot without locking, and a render that must see a single charset from start to end
+ * captures one with snapshot(). Edits are synchronized with each other, so one matcher can be edited from
+ * one thread while other threads render with it.
  *
  * @author Yoav Barak
  */
 public class SubImgCharMatcher {
 
-    private static final String MID_CHAR = "Is mid char";
+    private static final String VERIFY_PROPERTY = "image_char_matching.verifyLookupTable";
+    // Only touched by the synchronized edits
     private final BrightnessCalculationAndNormalization brightnessCalculationAndNormalization;
-    private final TakeCareOnTreeMap takeCareOnTreeMap;
+    private boolean verifyLookupTable = Boolean.getBoolean(VERIFY_PROPERTY);
+    private boolean shapeMatching = false;
+    private long version = 0;
+    private volatile CharMatcherSnapshot snapshot; // Replaced as a whole by every edit
 
 
     /**
@@ -32,12 +39,82 @@ public class SubImgCharMatcher {
      */
     public SubImgCharMatcher(char[] charset) {
         this.brightnessCalculationAndNormalization = new BrightnessCalculationAndNormalization();
-        this.takeCareOnTreeMap = new TakeCareOnTreeMap();
         this.brightnessCalculationAndNormalization.ArrayBrightnessCalculation(charset);
-        this.brightnessCalculationAndNormalization.NormalizeAllLetterAndBrightness();
-        this.takeCareOnTreeMap.resetDoubleSetsTreeMap(this.brightnessCalculationAndNormalization.
-                getAllLetterAndBrightnessNormal());
+        rebuild();
+    }
+
+    /**
+     * Returns the version of the charset. The version changes every time a character is actually added or
+     * removed, so results computed with the same version can be reused.
+     *
+     * @return The current charset version.
+     */
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * Returns the current state of the matcher, which later edits leave unchanged.
+     *
+     * @return The snapshot of the current charset.
+     */
+    public CharMatcherSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Turns the verification of the lookup table on or off. While it is on, every lookup table is checked
+     * against the tree when it is compiled, and every match is compared with the result of the tree
+     * lookup; a disagreement throws an IllegalStateException.
+     *
+     * @param verifyLookupTable true to verify the lookup table, false to trust it.
+     */
+    public synchronized void setVerifyLookupTable(boolean verifyLookupTable) {
+        this.verifyLookupTable = verifyLookupTable;
+        rebuild();
+    }
+
+    /**
+     * Switches between matching the brightness and matching the shape of the sub-images. Switching
+     * changes the version, since the same image gives different characters in the two modes.
+     *
+     * @param shapeMatching true to match shapes with getCharByShape, false to match brightness values.
+     */
+    public synchronized void setShapeMatching(boolean shapeMatching) {
+        if (this.shapeMatching != shapeMatching) {
+            this.shapeMatching = shapeMatching;
+            rebuild();
+        }
+    }
+
+    /**
+     * Returns whether shapes are matched instead of brightness values.
+     *
+     * @return true if shape matching is on.
+     */
+    public boolean isShapeMatching() {
+        return snapshot.isShapeMatching();
+    }
+
+    /**
+     * Returns the number of cells in each row and column of the masks given to getCharByShape.
+     *
+     * @return The size of the glyph masks.
+     */
+    public int getShapeMaskSize() {
+        return snapshot.getShapeMaskSize();
+    }
 
+    /**
+     * Matches a character to the shape of a sub-image: the character whose glyph differs from the mask in
+     * the fewest pixels, and of those, the smallest one.
+     *
+     * @param mask The packed mask of the sub-image, getShapeMaskSize cells square, laid out as
+     *             CharConverter.convertToPackedMask lays out glyphs. A set bit is a bright cell.
+     * @return The character with the closest shape.
+     */
+    public char getCharByShape(long[] mask) {
+        return snapshot.getCharByShape(mask);
     }
 
     /**
@@ -49,45 +126,18 @@ public class SubImgCharMatcher {
      * @return The character with the closest brightness to the given value.
      */
     public char getCharByImageBrightness(double brightness) {
-        ArrayList<Character> arrayCharByBrightness =
-                this.takeCareOnTreeMap.FindArrayCharByBrightness(brightness);
-
-        // Assume the first character has the smallest ASCII value initially
-        char smallestChar = arrayCharByBrightness.getFirst();
-
-        // Iterate through the ArrayList to find the character with the smallest ASCII value
-        for (char ch : arrayCharByBrightness) {
-            if (ch < smallestChar) {
-                smallestChar = ch;
-            }
-        }
-        return smallestChar;
+        return snapshot.getCharByImageBrightness(brightness);
     }
 
     /**
-     * Adds a character to the matching system. Calculates its brightness, normalizes it, and updates the data
+     * Adds a character to the matching system. Calculates its brightness and updates the data
      * structure used for matching.
      *
      * @param c The character to add.
      */
-    public void addChar(char c) {
-        if (this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal().containsKey(c)) {
-            return;
-        }
+    public synchronized void addChar(char c) {
         if (this.brightnessCalculationAndNormalization.AddLetterAndBrightness(c)) {
-            // The min or max change!
-            this.brightnessCalculationAndNormalization.NormalizeAllLetterAndBrightness();
-            this.takeCareOnTreeMap.resetDoubleSetsTreeMap(
-                    this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal());
-        } else {
-            Double brightness = this.brightnessCalculationAndNormalization.CalculationBrightness(c);
-            Pair<Character, Double> characterDoublePairNormalization =
-                    this.brightnessCalculationAndNormalization.NormalizeLetterAndBrightness(
-                            new AbstractMap.SimpleEntry<>(c, brightness));
-            Map.Entry<Character, Double> mapEntry =
-                    new AbstractMap.SimpleEntry<>(characterDoublePairNormalization.getLetter(),
-                            characterDoublePairNormalization.getBrightness());
-            this.takeCareOnTreeMap.addPairToTree(mapEntry);
+            rebuild();
         }
     }
 
@@ -98,28 +148,72 @@ public class SubImgCharMatcher {
      *
      * @param c The character to remove.
      */
-    public void removeChar(char c) {
-        if (!this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal().containsKey(c)) {
+    public synchronized void removeChar(char c) {
+        if (this.brightnessCalculationAndNormalization.RemoveLetter(c)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Adds several characters to the matching system at once. The brightness of every new character is
+     * calculated first (the missing glyphs are rendered in parallel), and only then are the matching
+     * structures rebuilt, a single time for the whole batch. The result is the same as adding the
+     * characters one by one.
+     *
+     * @param chars The characters to add; characters already in the system are ignored.
+     */
+    public synchronized void addChars(char[] chars) {
+        CharConverter.prefetch(chars);
+        boolean added = false;
+        for (char c : chars) {
+            added |= this.brightnessCalculationAndNormalization.AddLetterAndBrightness(c);
+        }
+        if (added) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Removes several characters from the matching system at once, rebuilding the matching structures a
+     * single time for the whole batch.
+     *
+     * @param chars The characters to remove; characters not in the system are ignored.
+     */
+    public synchronized void removeChars(char[] chars) {
+        boolean removed = false;
+        for (char c : chars) {
+            removed |= this.brightnessCalculationAndNormalization.RemoveLetter(c);
+        }
+        if (removed) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Compiles the lookup table from the sorted brightness levels of the current charset, normalized
+     * against its current extremes, and publishes it in a new snapshot. Called after every change to the
+     * charset; its cost depends on the number of distinct brightness levels, not on the number of
+     * characters. Renders that hold the previous snapshot are not affected.
+     */
+    private void rebuild() {
+        this.version++;
+        if (this.brightnessCalculationAndNormalization.isEmpty()) {
+            this.snapshot = new CharMatcherSnapshot(this.version, null, null, this.shapeMatching, null);
             return;
         }
-        Double currBrightnessNormal =
-                this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal().get(c);
-        String ifMinOrMax =
-                this.brightnessCalculationAndNormalization.UpdateMinMaxRemoveCase(currBrightnessNormal);
-        this.brightnessCalculationAndNormalization.getAllLetterAndBrightness().remove(c);
-
-        if (Objects.equals(ifMinOrMax, MID_CHAR)) {
-            this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal().remove(c);
-            this.takeCareOnTreeMap.removePairToTree(c, currBrightnessNormal);
-        } else {
-            // The min or max change!
-            this.brightnessCalculationAndNormalization.NormalizeAllLetterAndBrightness();
-            this.takeCareOnTreeMap.resetDoubleSetsTreeMap(
+        ShapeMatcher shapeMatcher = this.shapeMatching ?
+                new ShapeMatcher(this.brightnessCalculationAndNormalization.getLetters()) : null;
+        BrightnessLookupTable lookupTable = new BrightnessLookupTable(
+                this.brightnessCalculationAndNormalization.getSortedBrightnessNormal(),
+                this.brightnessCalculationAndNormalization.getSmallestLetterOfEachBrightness());
+        TakeCareOnTreeMap takeCareOnTreeMap = null;
+        if (this.verifyLookupTable) {
+            takeCareOnTreeMap = new TakeCareOnTreeMap();
+            takeCareOnTreeMap.resetDoubleSetsTreeMap(
                     this.brightnessCalculationAndNormalization.getAllLetterAndBrightnessNormal());
+            lookupTable.checkAgreesWith(takeCareOnTreeMap);
         }
-
+        this.snapshot = new CharMatcherSnapshot(this.version, lookupTable, takeCareOnTreeMap,
+                this.shapeMatching, shapeMatcher);
     }
 }
-
-
-
@@ -0,0 +1,62 @@
+package image;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Converts pixels to grayscale a whole vector at a time with the Vector API: the channels of every lane are
+ * unpacked with shifts and masks, weighted and added up in integer lanes. Sums are accumulated lane by lane
+ * and reduced to a long before their total can overflow an int. Loaded by GrayScaleKernel only when the
+ * jdk.incubator.vector module is present.
+ */
+final class VectorGrayScaleKernel extends GrayScaleKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int MAX_GRAY_SCALE = 255 * (RED_WEIGHT + GREEN_WEIGHT + BLUE_WEIGHT);
+    // The lanes are added up in an int before the total is widened to a long, so they are reduced before
+    // their sum could overflow
+    private static final int VECTORS_PER_REDUCTION = Integer.MAX_VALUE / MAX_GRAY_SCALE / SPECIES.length();
+
+    VectorGrayScaleKernel() {
+    }
+
+    @Override
+    public void grayScaleRow(int[] pixels, int from, int length, int[] gray) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            grayScaleVector(pixels, from + i).intoArray(gray, i);
+        }
+        for (; i < length; i++) {
+            gray[i] = grayScale(pixels[from + i]);
+        }
+    }
+
+    @Override
+    public long sumGrayScale(int[] pixels, int from, int length) {
+        long total = 0;
+        IntVector sums = IntVector.zero(SPECIES);
+        int pending = 0;
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            sums = sums.add(grayScaleVector(pixels, from + i));
+            if (++pending == VECTORS_PER_REDUCTION) {
+                total += sums.reduceLanesToLong(VectorOperators.ADD);
+                sums = IntVector.zero(SPECIES);
+                pending = 0;
+            }
+        }
+        total += sums.reduceLanesToLong(VectorOperators.ADD);
+        for (; i < length; i++) {
+            total += grayScale(pixels[from + i]);
+        }
+        return total;
+    }
+
+    private static IntVector grayScaleVector(int[] pixels, int offset) {
+        IntVector pixel = IntVector.fromArray(SPECIES, pixels, offset);
+        IntVector red = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+        IntVector green = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+        IntVector blue = pixel.and(0xFF);
+        return red.mul(RED_WEIGHT).add(green.mul(GREEN_WEIGHT)).add(blue.mul(BLUE_WEIGHT));
+    }
+}